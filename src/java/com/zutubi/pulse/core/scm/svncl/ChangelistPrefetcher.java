@@ -0,0 +1,346 @@
+package com.zutubi.pulse.core.scm.svncl;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.zutubi.pulse.core.engine.api.ExecutionContext;
+import com.zutubi.pulse.core.scm.api.Changelist;
+import com.zutubi.pulse.core.scm.api.ScmException;
+
+/**
+ * Fetches changelists in the background ahead of them being requested.  When
+ * a poll finds a new revision, Pulse waits out the quiet period before asking
+ * for the changes; this class uses that time to run svn log and buffers the
+ * parsed changelists so the later request can be answered from memory.
+ * <p/>
+ * Clients are created per operation, so prefetchers are shared by location
+ * (see {@link #forLocation(String)}).  Each one buffers a single contiguous
+ * range of revisions, bounded to {@link #MAX_BUFFERED_REVISIONS}: the oldest
+ * revisions are discarded as the range grows.  Buffered changelists are not
+ * filtered, so clients with different path filters can share them.
+ */
+public class ChangelistPrefetcher
+{
+    /**
+     * Callback used to run the actual log fetch for a range of revisions.
+     */
+    public interface Fetcher
+    {
+        /**
+         * Fetches all changelists in the given inclusive revision range.
+         *
+         * @param context context in which to run the fetch
+         * @param from    first revision to fetch
+         * @param to      last revision to fetch
+         * @return the unfiltered changelists in the range, in revision order
+         * @throws ScmException on any error
+         */
+        List<Changelist> fetch(ExecutionContext context, long from, long to) throws ScmException;
+    }
+
+    public static final int MAX_BUFFERED_REVISIONS = 500;
+
+    private static final Logger LOG = Logger.getLogger(ChangelistPrefetcher.class.getName());
+
+    private static final int MAX_PREFETCHERS = 64;
+    private static final int PREFETCH_THREADS = 2;
+
+    private static final Map<String, ChangelistPrefetcher> prefetchers = new HashMap<String, ChangelistPrefetcher>();
+    private static ExecutorService executor;
+
+    private final SortedMap<Long, Changelist> buffer = new TreeMap<Long, Changelist>();
+    // The buffer covers revisions lowest..highest inclusive, and is empty
+    // when lowest > highest.  A negative highest means no revision has been
+    // seen yet.
+    private long lowest = 0;
+    private long highest = -1;
+    private Future<?> pending;
+    private long pendingTo;
+    // Set once the pending prefetch is actually running, rather than queued
+    // behind prefetches for other locations.
+    private boolean pendingStarted;
+    private long generation;
+
+    /**
+     * Returns the prefetcher shared by all clients for the given location,
+     * creating it if necessary.
+     *
+     * @param location the location of the repository, including the user
+     *                 used to access it
+     * @return the prefetcher for the location
+     */
+    public static ChangelistPrefetcher forLocation(String location)
+    {
+        synchronized (prefetchers)
+        {
+            ChangelistPrefetcher prefetcher = prefetchers.get(location);
+            if (prefetcher == null)
+            {
+                if (prefetchers.size() >= MAX_PREFETCHERS)
+                {
+                    // Rare enough that just starting over is fine.
+                    for (ChangelistPrefetcher p : prefetchers.values())
+                    {
+                        p.cancel();
+                    }
+                    prefetchers.clear();
+                }
+
+                prefetcher = new ChangelistPrefetcher();
+                prefetchers.put(location, prefetcher);
+            }
+
+            return prefetcher;
+        }
+    }
+
+    /**
+     * Cancels and discards the prefetcher for the given location, if any.
+     *
+     * @param location the location of the repository, including the user
+     *                 used to access it
+     */
+    public static void discard(String location)
+    {
+        ChangelistPrefetcher prefetcher;
+        synchronized (prefetchers)
+        {
+            prefetcher = prefetchers.remove(location);
+        }
+
+        if (prefetcher != null)
+        {
+            prefetcher.cancel();
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor()
+    {
+        if (executor == null)
+        {
+            executor = Executors.newFixedThreadPool(PREFETCH_THREADS, new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "svncl changelist prefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return executor;
+    }
+
+    /**
+     * Notifies this prefetcher of the latest revision in the repository.  The
+     * first revision seen is taken as a baseline.  Any later, newer revision
+     * starts a background fetch of all revisions since those already
+     * buffered, superseding any fetch already in progress.  If that would be
+     * more than can be buffered, the buffer is restarted so that only the
+     * revisions that will be kept are fetched.  Older revisions are ignored,
+     * as they come from polls that raced with a newer one.
+     *
+     * @param context context in which to run the fetch
+     * @param latest  the latest revision in the repository
+     * @param fetcher used to fetch the changelists
+     */
+    public synchronized void revisionSeen(final ExecutionContext context, long latest, final Fetcher fetcher)
+    {
+        if (highest < 0)
+        {
+            lowest = latest + 1;
+            highest = latest;
+            return;
+        }
+
+        if (latest <= (pending == null ? highest : pendingTo))
+        {
+            return;
+        }
+
+        if (latest - highest > MAX_BUFFERED_REVISIONS)
+        {
+            reset();
+            highest = latest - MAX_BUFFERED_REVISIONS;
+            lowest = highest + 1;
+        }
+        else if (pending != null)
+        {
+            pending.cancel(true);
+        }
+
+        final long gen = ++generation;
+        final long from = highest + 1;
+        final long to = latest;
+        pendingTo = to;
+        pendingStarted = false;
+        pending = getExecutor().submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (!start(gen))
+                {
+                    return;
+                }
+
+                try
+                {
+                    publish(gen, from, to, fetcher.fetch(context, from, to));
+                }
+                catch (Exception e)
+                {
+                    // The changes will be fetched directly when requested.
+                    LOG.log(Level.WARNING, "Unable to prefetch changes for revisions " + from + " to " + to + ": " + e.getMessage(), e);
+                    publish(gen, from, to, null);
+                }
+            }
+        });
+    }
+
+    private synchronized boolean start(long gen)
+    {
+        if (gen != generation)
+        {
+            return false;
+        }
+
+        pendingStarted = true;
+        return true;
+    }
+
+    private synchronized void publish(long gen, long from, long to, List<Changelist> changelists)
+    {
+        if (gen != generation)
+        {
+            // Superseded or cancelled.
+            return;
+        }
+
+        pending = null;
+        if (changelists == null || from != highest + 1)
+        {
+            return;
+        }
+
+        for (Changelist changelist : changelists)
+        {
+            buffer.put(Long.parseLong(changelist.getRevision().getRevisionString()), changelist);
+        }
+
+        highest = to;
+        if (highest - lowest + 1 > MAX_BUFFERED_REVISIONS)
+        {
+            lowest = highest - MAX_BUFFERED_REVISIONS + 1;
+            buffer.headMap(lowest).clear();
+        }
+    }
+
+    /**
+     * Returns buffered changelists for the given inclusive revision range, if
+     * the whole range is covered.  If a prefetch that would cover the range
+     * is already running, waits for it to complete.  A prefetch that is still
+     * queued is cancelled instead, as fetching directly will be quicker than
+     * waiting for other locations' prefetches to finish first.
+     *
+     * @param from first revision in the range
+     * @param to   last revision in the range
+     * @return the unfiltered changelists in the range, in revision order, or
+     *         null if the range is not buffered
+     */
+    public List<Changelist> getBuffered(long from, long to)
+    {
+        Future<?> waitFor;
+        synchronized (this)
+        {
+            if (highest < 0 || from < lowest)
+            {
+                return null;
+            }
+
+            if (to <= highest)
+            {
+                return new LinkedList<Changelist>(buffer.subMap(from, to + 1).values());
+            }
+
+            if (pending == null || to > pendingTo)
+            {
+                return null;
+            }
+
+            if (!pendingStarted)
+            {
+                generation++;
+                pending.cancel(false);
+                pending = null;
+                return null;
+            }
+
+            waitFor = pending;
+        }
+
+        try
+        {
+            waitFor.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e)
+        {
+            return null;
+        }
+        catch (CancellationException e)
+        {
+            // Superseded, fall through to check what we have.
+        }
+
+        synchronized (this)
+        {
+            if (highest >= 0 && from >= lowest && to <= highest)
+            {
+                return new LinkedList<Changelist>(buffer.subMap(from, to + 1).values());
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Cancels any prefetch in progress and discards all buffered changelists.
+     */
+    public synchronized void cancel()
+    {
+        reset();
+    }
+
+    private void reset()
+    {
+        generation++;
+        if (pending != null)
+        {
+            pending.cancel(true);
+            pending = null;
+        }
+
+        buffer.clear();
+        lowest = 0;
+        highest = -1;
+    }
+}
@@ -0,0 +1,175 @@
+package com.zutubi.pulse.core.scm.svncl;
+
+import static com.zutubi.pulse.core.scm.svncl.SvnConstants.COMMAND_CHECKOUT;
+import static com.zutubi.pulse.core.scm.svncl.SvnConstants.COMMAND_EXPORT;
+import static com.zutubi.pulse.core.scm.svncl.SvnConstants.COMMAND_INFO;
+import static com.zutubi.pulse.core.scm.svncl.SvnConstants.COMMAND_LOG;
+import static com.zutubi.pulse.core.scm.svncl.SvnConstants.COMMAND_UPDATE;
+import static com.zutubi.pulse.core.scm.svncl.SvnConstants.FLAG_FORCE;
+import static com.zutubi.pulse.core.scm.svncl.SvnConstants.FLAG_REVISION;
+import static com.zutubi.pulse.core.scm.svncl.SvnConstants.FLAG_VERBOSE;
+import static com.zutubi.pulse.core.scm.svncl.SvnConstants.FLAG_XML;
+import static com.zutubi.pulse.core.scm.svncl.SvnConstants.PATTERN_LAST_REVISION;
+import static com.zutubi.pulse.core.scm.svncl.SvnConstants.PATTERN_UUID;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.zutubi.pulse.core.engine.api.ExecutionContext;
+import com.zutubi.pulse.core.scm.api.Changelist;
+import com.zutubi.pulse.core.scm.api.Revision;
+import com.zutubi.pulse.core.scm.api.ScmException;
+import com.zutubi.pulse.core.scm.api.ScmFeedbackHandler;
+import com.zutubi.util.StringUtils;
+
+/**
+ * The default {@link SvnBackend}, which runs the svn command-line client
+ * via {@link SvnCommandLine}.
+ */
+public class CommandLineBackend implements SvnBackend
+{
+    private final SvnConfiguration config;
+
+    public CommandLineBackend(SvnConfiguration config)
+    {
+        this.config = config;
+    }
+
+    @Override
+    public String getUuid(ExecutionContext context) throws ScmException
+    {
+        return getInfo(context, PATTERN_UUID, "Repository UUID");
+    }
+
+    @Override
+    public long getLatestRevision(ExecutionContext context) throws ScmException
+    {
+        return Long.parseLong(getInfo(context, PATTERN_LAST_REVISION, "Last changed revision"));
+    }
+
+    private String getInfo(ExecutionContext executionContext, Pattern pattern, String description) throws ScmException
+    {
+        SvnCommandLine cl = new SvnCommandLine(config);
+        List<String> stdout = cl.run(executionContext, null, COMMAND_INFO, config.getUrl());
+        for (String line : stdout)
+        {
+            Matcher matcher = pattern.matcher(line);
+            if (matcher.matches())
+            {
+                return matcher.group(1);
+            }
+        }
+
+        throw new ScmException(description + " not found in info output ("
+                + StringUtils.join("\n", stdout) + ")");
+    }
+
+    @Override
+    public void checkout(ExecutionContext context, ScmFeedbackHandler handler, Revision revision, File dir)
+            throws ScmException
+    {
+        SvnCommandLine cl = new SvnCommandLine(config);
+        cl.run(context, handler, COMMAND_CHECKOUT, FLAG_REVISION, revision.getRevisionString(), FLAG_FORCE,
+                config.getUrl(), dir.getAbsolutePath());
+    }
+
+    @Override
+    public void update(ExecutionContext context, ScmFeedbackHandler handler, Revision revision, File dir)
+            throws ScmException
+    {
+        SvnCommandLine cl = new SvnCommandLine(config);
+        cl.run(context, handler, COMMAND_UPDATE, FLAG_REVISION, revision.getRevisionString(), FLAG_FORCE,
+                dir.getAbsolutePath());
+    }
+
+    @Override
+    public InputStream retrieve(ExecutionContext context, String path, Revision revision) throws ScmException
+    {
+        // The file is exported rather than catted, as process output is
+        // handled line by line and so would not come back byte for byte.
+        File file = null;
+        try
+        {
+            file = File.createTempFile("svncl-retrieve", ".tmp");
+
+            // A peg revision, so files since deleted can be retrieved.
+            String url = StringUtils.join("/", true, config.getUrl(), path);
+            if (revision != null)
+            {
+                url += "@" + revision.getRevisionString();
+            }
+
+            SvnCommandLine cl = new SvnCommandLine(config);
+            cl.run(context, null, COMMAND_EXPORT, FLAG_FORCE, url, file.getAbsolutePath());
+
+            // This implementation is somewhat naive in its memory usage.
+            return new ByteArrayInputStream(readFile(file));
+        }
+        catch (IOException e)
+        {
+            throw new ScmException("Unable to retrieve '" + path + "': " + e.getMessage(), e);
+        }
+        finally
+        {
+            if (file != null && !file.delete())
+            {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private byte[] readFile(File file) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream((int) file.length());
+        FileInputStream input = new FileInputStream(file);
+        try
+        {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = input.read(buffer)) > 0)
+            {
+                output.write(buffer, 0, n);
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+
+        return output.toByteArray();
+    }
+
+    @Override
+    public List<Changelist> getChanges(ExecutionContext context, long from, long to, boolean includeFiles)
+            throws ScmException
+    {
+        List<String> args = new LinkedList<String>();
+        args.add(COMMAND_LOG);
+        args.add(FLAG_REVISION);
+        args.add(Long.toString(from) + ":" + Long.toString(to));
+        if (includeFiles)
+        {
+            args.add(FLAG_VERBOSE);
+        }
+        args.add(FLAG_XML);
+        args.add(config.getUrl());
+
+        SvnCommandLine commandLine = new SvnCommandLine(config);
+        List<String> lines = commandLine.run(context, null, args.toArray(new String[args.size()]));
+        return LogParser.parse(StringUtils.join("", lines));
+    }
+
+    @Override
+    public void destroy()
+    {
+        // no-op
+    }
+}
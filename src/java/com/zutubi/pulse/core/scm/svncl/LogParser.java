@@ -91,7 +91,9 @@ public class LogParser
         String author = authorElement == null ? "anonymous" : XMLUtils.getText(authorElement, "?");
         String dateString = XMLUtils.getRequiredChildText(element, ELEMENT_DATE, true);
         String message = XMLUtils.getChildText(element, ELEMENT_MESSAGE, "");
-        List<FileChange> changes = processChanges(XMLUtils.getRequiredChild(element, ELEMENT_PATHS), revision);
+        // Paths are only present in verbose output.
+        Element pathsElement = element.getFirstChildElement(ELEMENT_PATHS);
+        List<FileChange> changes = pathsElement == null ? new LinkedList<FileChange>() : processChanges(pathsElement, revision);
         
         result.add(new Changelist(revision, parseDate(dateString), author, message, changes));
     }
@@ -116,7 +118,20 @@ public class LogParser
             return Action.UNKNOWN;
         }
 
-        switch (actionString.charAt(0))
+        return convertAction(actionString.charAt(0));
+    }
+
+    /**
+     * Converts a single-character svn change type (as used in log output)
+     * to the corresponding file change action.
+     *
+     * @param action the svn change type, e.g. 'A' for an add
+     * @return the corresponding action, {@link Action#UNKNOWN} if the type
+     *         is not recognised
+     */
+    static Action convertAction(char action)
+    {
+        switch (action)
         {
             case'A':
                 return FileChange.Action.ADD;
@@ -134,17 +149,52 @@ public class LogParser
     private static long parseDate(String dateString) throws ParsingException
     {
         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS z");
-        if (dateString.endsWith("Z"))
-        {
-            dateString = dateString.substring(0, dateString.length() - 1) + " UTC";
-        }
+        String normalised = normaliseDate(dateString);
         try
         {
-            return dateFormat.parse(dateString).getTime();
+            return dateFormat.parse(normalised).getTime();
         }
         catch (ParseException e)
         {
             throw new ParsingException("Unparseable date '" + dateString + "'");
         }
     }
+
+    /**
+     * Converts an svn date, e.g. 2009-06-08T17:31:04.848536Z, to the form
+     * expected by our date format.  svn reports microseconds, which the
+     * format would read as a number of milliseconds, so the fraction is cut
+     * (or padded) to exactly three digits.
+     */
+    private static String normaliseDate(String dateString)
+    {
+        String result = dateString;
+        if (result.endsWith("Z"))
+        {
+            result = result.substring(0, result.length() - 1) + " UTC";
+        }
+
+        int dotIndex = result.indexOf('.');
+        if (dotIndex < 0)
+        {
+            int zoneIndex = result.indexOf(' ');
+            if (zoneIndex >= 0)
+            {
+                result = result.substring(0, zoneIndex) + ".000" + result.substring(zoneIndex);
+            }
+        }
+        else
+        {
+            int fractionEnd = dotIndex + 1;
+            while (fractionEnd < result.length() && Character.isDigit(result.charAt(fractionEnd)))
+            {
+                fractionEnd++;
+            }
+
+            String millis = (result.substring(dotIndex + 1, fractionEnd) + "000").substring(0, 3);
+            result = result.substring(0, dotIndex + 1) + millis + result.substring(fractionEnd);
+        }
+
+        return result;
+    }
 }
@@ -0,0 +1,310 @@
+package com.zutubi.pulse.core.scm.svncl;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.zutubi.pulse.core.scm.api.Changelist;
+
+/**
+ * A compact in-memory index from revision to commit time for a single
+ * location, used to resolve dates to revisions without asking the server.
+ * Revisions and times are held in parallel primitive arrays, ordered by
+ * revision, and looked up with a binary search.  Like svn itself, the
+ * search assumes commit times increase with revision numbers.
+ * <p/>
+ * The index is built incrementally from the changelists fetched for the
+ * location (see {@link #addChangelists(long, long, List)}).  It tracks the
+ * contiguous range of revisions it has complete information for, and
+ * whether that range reaches back to the start of the location's history,
+ * so it can tell when a lookup needs more history fetched first.  As
+ * clients are created per operation, indices are shared by location (see
+ * {@link #forLocation(String)}).
+ */
+public class RevisionTimeIndex
+{
+    /**
+     * Returned by {@link #getRevisionAt(long)} when the index does not hold
+     * enough history to answer.
+     */
+    public static final long UNKNOWN = -1;
+    /**
+     * Returned by {@link #getRevisionAt(long)} when there were no changes at
+     * or before the given time.
+     */
+    public static final long NONE = 0;
+
+    private static final int MAX_INDICES = 64;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final Map<String, RevisionTimeIndex> indices = new HashMap<String, RevisionTimeIndex>();
+
+    private long[] revisions = new long[INITIAL_CAPACITY];
+    private long[] times = new long[INITIAL_CAPACITY];
+    private int size = 0;
+    // All changes in revisions coveredFrom..coveredTo inclusive are in the
+    // index, which is empty when coveredTo < coveredFrom.
+    private long coveredFrom = 0;
+    private long coveredTo = -1;
+    // If set, there are no changes to the location before this revision.
+    private long historyStart = -1;
+    private long latestSeen = -1;
+    private long latestSeenAt = 0;
+
+    /**
+     * Returns the index shared by all clients for the given location,
+     * creating it if necessary.
+     *
+     * @param location the location of the repository, including the user
+     *                 used to access it
+     * @return the index for the location
+     */
+    public static RevisionTimeIndex forLocation(String location)
+    {
+        synchronized (indices)
+        {
+            RevisionTimeIndex index = indices.get(location);
+            if (index == null)
+            {
+                if (indices.size() >= MAX_INDICES)
+                {
+                    // Rare enough that just starting over is fine.
+                    indices.clear();
+                }
+
+                index = new RevisionTimeIndex();
+                indices.put(location, index);
+            }
+
+            return index;
+        }
+    }
+
+    /**
+     * Discards the index for the given location, if any.
+     *
+     * @param location the location of the repository, including the user
+     *                 used to access it
+     */
+    public static void discard(String location)
+    {
+        synchronized (indices)
+        {
+            indices.remove(location);
+        }
+    }
+
+    /**
+     * Adds all changelists fetched for a range of revisions to the index.
+     * The changelists must be unfiltered, so that the range is known to be
+     * complete.  Ranges that overlap or adjoin the range already indexed are
+     * merged with it.  A newer, disjoint range replaces the existing index,
+     * and an older, disjoint range is ignored.
+     *
+     * @param from        first revision of the fetched range
+     * @param to          last revision of the fetched range
+     * @param changelists all changelists in the range
+     */
+    public synchronized void addChangelists(long from, long to, List<Changelist> changelists)
+    {
+        if (from > to)
+        {
+            return;
+        }
+
+        if (coveredTo < coveredFrom || from > coveredTo + 1)
+        {
+            clear();
+            coveredFrom = from;
+            coveredTo = from - 1;
+        }
+        else if (to < coveredFrom - 1)
+        {
+            return;
+        }
+
+        for (Changelist changelist : changelists)
+        {
+            long revision = Long.parseLong(changelist.getRevision().getRevisionString());
+            if (revision < coveredFrom || revision > coveredTo)
+            {
+                insert(revision, changelist.getTime());
+            }
+        }
+
+        coveredFrom = Math.min(coveredFrom, from);
+        coveredTo = Math.max(coveredTo, to);
+    }
+
+    /**
+     * Records that the location has no history before the start of the
+     * range already indexed, e.g. because it did not exist in the previous
+     * revision.
+     *
+     * @param revision the first revision of the range indexed when the
+     *                 start of history was found, to guard against the
+     *                 index having been reset in the meantime
+     */
+    public synchronized void historyStartsAt(long revision)
+    {
+        if (coveredTo >= coveredFrom && revision == coveredFrom)
+        {
+            historyStart = revision;
+        }
+    }
+
+    /**
+     * @return true if the index reaches back to the start of the location's
+     *         history
+     */
+    public synchronized boolean isHistoryComplete()
+    {
+        return coveredTo >= coveredFrom && (coveredFrom <= 1 || historyStart == coveredFrom);
+    }
+
+    private void clear()
+    {
+        size = 0;
+        coveredFrom = 0;
+        coveredTo = -1;
+        historyStart = -1;
+    }
+
+    private void insert(long revision, long time)
+    {
+        if (size == revisions.length)
+        {
+            long[] newRevisions = new long[size * 2];
+            long[] newTimes = new long[size * 2];
+            System.arraycopy(revisions, 0, newRevisions, 0, size);
+            System.arraycopy(times, 0, newTimes, 0, size);
+            revisions = newRevisions;
+            times = newTimes;
+        }
+
+        // Usually appending, so search back from the end.
+        int i = size;
+        while (i > 0 && revisions[i - 1] > revision)
+        {
+            i--;
+        }
+
+        if (i > 0 && revisions[i - 1] == revision)
+        {
+            return;
+        }
+
+        System.arraycopy(revisions, i, revisions, i + 1, size - i);
+        System.arraycopy(times, i, times, i + 1, size - i);
+        revisions[i] = revision;
+        times[i] = time;
+        size++;
+    }
+
+    /**
+     * Records the latest revision seen for the location.  An older revision
+     * than already recorded is ignored, as it comes from a check that raced
+     * with a newer one.  If the repository really has gone backwards, the
+     * index should be discarded (see {@link #discard(String)}).
+     *
+     * @param revision the latest revision
+     * @param checkedAt the time, in milliseconds since the epoch, just
+     *                  before the revision was requested from the server
+     */
+    public synchronized void latestSeen(long revision, long checkedAt)
+    {
+        if (revision > latestSeen)
+        {
+            latestSeen = revision;
+            latestSeenAt = checkedAt;
+        }
+        else if (revision == latestSeen)
+        {
+            latestSeenAt = Math.max(latestSeenAt, checkedAt);
+        }
+    }
+
+    /**
+     * @return the latest revision recorded via
+     *         {@link #latestSeen(long, long)}, or -1 if none has been
+     */
+    public synchronized long getLatestSeen()
+    {
+        return latestSeen;
+    }
+
+    /**
+     * @return the first revision of the range the index is complete for
+     */
+    public synchronized long getCoveredFrom()
+    {
+        return coveredFrom;
+    }
+
+    /**
+     * @return the last revision of the range the index is complete for, less
+     *         than {@link #getCoveredFrom()} if the index is empty
+     */
+    public synchronized long getCoveredTo()
+    {
+        return coveredTo;
+    }
+
+    /**
+     * Indicates if the given time is before any indexed change.
+     *
+     * @param time the time to test, in milliseconds since the epoch
+     * @return true if the index is empty or the time is before the first
+     *         change it holds
+     */
+    public synchronized boolean isBeforeIndexed(long time)
+    {
+        return size == 0 || time < times[0];
+    }
+
+    /**
+     * Finds the last revision committed at or before the given time.
+     *
+     * @param time the time to look up, in milliseconds since the epoch
+     * @return the revision, {@link #NONE} if there were no changes at or
+     *         before the time, or {@link #UNKNOWN} if more history is
+     *         required to answer
+     */
+    public synchronized long getRevisionAt(long time)
+    {
+        if (size == 0)
+        {
+            return UNKNOWN;
+        }
+
+        // Binary search for the last entry at or before the time.
+        int low = 0;
+        int high = size - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            if (times[mid] <= time)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid - 1;
+            }
+        }
+
+        if (high < 0)
+        {
+            return isHistoryComplete() ? NONE : UNKNOWN;
+        }
+
+        if (high == size - 1)
+        {
+            // After everything we know of: only safe if we are up to date and
+            // any later commit must have come after the time.
+            return coveredTo >= latestSeen && time <= latestSeenAt ? revisions[high] : UNKNOWN;
+        }
+
+        return revisions[high];
+    }
+}
@@ -0,0 +1,102 @@
+package com.zutubi.pulse.core.scm.svncl;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+
+import com.zutubi.pulse.core.engine.api.ExecutionContext;
+import com.zutubi.pulse.core.scm.api.Changelist;
+import com.zutubi.pulse.core.scm.api.Revision;
+import com.zutubi.pulse.core.scm.api.ScmException;
+import com.zutubi.pulse.core.scm.api.ScmFeedbackHandler;
+
+/**
+ * The engine used by {@link SvnClient} to talk to Subversion.  All
+ * operations work against the URL of the configuration the backend was
+ * created for.
+ *
+ * @see SvnBackendType
+ */
+public interface SvnBackend
+{
+    /**
+     * Returns the UUID of the repository.
+     *
+     * @param context context in which to run the operation
+     * @return the repository UUID
+     * @throws ScmException on any error
+     */
+    String getUuid(ExecutionContext context) throws ScmException;
+
+    /**
+     * Returns the revision in which the configured URL was last changed.
+     *
+     * @param context context in which to run the operation
+     * @return the last changed revision
+     * @throws ScmException on any error
+     */
+    long getLatestRevision(ExecutionContext context) throws ScmException;
+
+    /**
+     * Checks out the configured URL at the given revision, overwriting any
+     * unversioned obstructions.
+     *
+     * @param context  context in which to run the operation
+     * @param handler  if not null, receives feedback and is polled for
+     *                 cancellation
+     * @param revision revision to check out
+     * @param dir      directory to check out into
+     * @throws ScmException on any error
+     */
+    void checkout(ExecutionContext context, ScmFeedbackHandler handler, Revision revision, File dir) throws ScmException;
+
+    /**
+     * Updates a working copy of the configured URL to the given revision,
+     * overwriting any unversioned obstructions.
+     *
+     * @param context  context in which to run the operation
+     * @param handler  if not null, receives feedback and is polled for
+     *                 cancellation
+     * @param revision revision to update to
+     * @param dir      root of the working copy
+     * @throws ScmException on any error
+     */
+    void update(ExecutionContext context, ScmFeedbackHandler handler, Revision revision, File dir) throws ScmException;
+
+    /**
+     * Retrieves the content of a file.
+     *
+     * @param context  context in which to run the operation
+     * @param path     path of the file relative to the configured URL
+     * @param revision revision of the file to retrieve, or null for the
+     *                 latest
+     * @return the file content
+     * @throws ScmException on any error
+     */
+    InputStream retrieve(ExecutionContext context, String path, Revision revision) throws ScmException;
+
+    /**
+     * Returns the changelists that affect the configured URL within an
+     * inclusive revision range.  No path filtering is applied.  If from is
+     * greater than to the log is walked backwards from the newer revision,
+     * which also works for ranges that extend back before the URL existed.
+     *
+     * @param context      context in which to run the operation
+     * @param from         first revision in the range
+     * @param to           last revision in the range
+     * @param includeFiles if false, the changelists are returned without
+     *                     their file changes, which is much cheaper when
+     *                     only revisions and times are required
+     * @return the changelists in the range, in the order the range is given
+     * @throws SvnPathNotFoundException if the configured URL does not exist
+     *                                  in the newer revision of the range
+     * @throws ScmException on any other error
+     */
+    List<Changelist> getChanges(ExecutionContext context, long from, long to, boolean includeFiles) throws ScmException;
+
+    /**
+     * Releases any resources held for the configured location, such as
+     * cached connections.  Called when the location is no longer in use.
+     */
+    void destroy();
+}
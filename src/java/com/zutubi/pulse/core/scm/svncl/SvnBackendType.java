@@ -0,0 +1,36 @@
+package com.zutubi.pulse.core.scm.svncl;
+
+/**
+ * The available {@link SvnBackend} implementations.
+ */
+public enum SvnBackendType
+{
+    /**
+     * Forks the svn command-line client for each operation.
+     */
+    COMMAND_LINE
+    {
+        public SvnBackend createBackend(SvnConfiguration config)
+        {
+            return new CommandLineBackend(config);
+        }
+    },
+    /**
+     * Uses SVNKit, a pure Java Subversion library, in process.
+     */
+    SVNKIT
+    {
+        public SvnBackend createBackend(SvnConfiguration config)
+        {
+            return new SvnKitBackend(config);
+        }
+    };
+
+    /**
+     * Creates a backend of this type.
+     *
+     * @param config configuration of the Subversion location to work with
+     * @return the new backend
+     */
+    public abstract SvnBackend createBackend(SvnConfiguration config);
+}
@@ -1,32 +1,28 @@
 
 package com.zutubi.pulse.core.scm.svncl;
 
-import static com.zutubi.pulse.core.scm.svncl.SvnConstants.COMMAND_CAT;
-import static com.zutubi.pulse.core.scm.svncl.SvnConstants.COMMAND_CHECKOUT;
-import static com.zutubi.pulse.core.scm.svncl.SvnConstants.COMMAND_INFO;
-import static com.zutubi.pulse.core.scm.svncl.SvnConstants.COMMAND_LOG;
-import static com.zutubi.pulse.core.scm.svncl.SvnConstants.COMMAND_UPDATE;
-import static com.zutubi.pulse.core.scm.svncl.SvnConstants.FLAG_FORCE;
-import static com.zutubi.pulse.core.scm.svncl.SvnConstants.FLAG_REVISION;
-import static com.zutubi.pulse.core.scm.svncl.SvnConstants.FLAG_VERBOSE;
-import static com.zutubi.pulse.core.scm.svncl.SvnConstants.FLAG_XML;
-import static com.zutubi.pulse.core.scm.svncl.SvnConstants.PATTERN_LAST_REVISION;
-import static com.zutubi.pulse.core.scm.svncl.SvnConstants.PATTERN_UUID;
-
-import java.io.ByteArrayInputStream;
+import static com.zutubi.pulse.core.scm.svncl.SvnConstants.REVISION_COMMITTED;
+import static com.zutubi.pulse.core.scm.svncl.SvnConstants.REVISION_HEAD;
+import static com.zutubi.pulse.core.scm.svncl.SvnConstants.REVISION_PREV;
+
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.EnumSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.TimeZone;
+
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
 
 import com.zutubi.pulse.core.engine.api.ExecutionContext;
 import com.zutubi.pulse.core.engine.api.ResourceProperty;
@@ -44,20 +40,30 @@ import com.zutubi.pulse.core.scm.api.ScmFile;
 import com.zutubi.util.CollectionUtils;
 import com.zutubi.util.Mapping;
 import com.zutubi.util.Predicate;
-import com.zutubi.util.StringUtils;
 import com.zutubi.util.io.IOUtils;
 
 /**
  * An {@link com.zutubi.pulse.core.scm.api.ScmClient} implementation that
- * wraps the command-line svn client.
+ * wraps the command-line svn client, or optionally an in-process engine
+ * (see {@link SvnBackendType}).
  */
 public class SvnClient implements ScmClient
 {
+    private static final int INDEX_CHUNK_SIZE = 1000;
+    private static final String[] DATE_FORMATS = {
+            "yyyy-MM-dd'T'HH:mm:ss.SSS", "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd'T'HH:mm",
+            "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mm", "yyyy-MM-dd"
+    };
+
     private final SvnConfiguration config;
+    private final SvnBackend backend;
 
     public SvnClient(SvnConfiguration config)
     {
         this.config = config;
+        // Configurations stored before the backend was selectable have none.
+        SvnBackendType backendType = config.getBackend() == null ? SvnBackendType.COMMAND_LINE : config.getBackend();
+        this.backend = backendType.createBackend(config);
     }
 
     @Override
@@ -74,7 +80,9 @@ public class SvnClient implements ScmClient
     @Override
     public void destroy(ScmContext context, ScmFeedbackHandler handler) throws ScmException
     {
-        // no-op
+        ChangelistPrefetcher.discard(getLocation(context));
+        RevisionTimeIndex.discard(getLocation(context));
+        backend.destroy();
     }
 
     @Override
@@ -94,24 +102,7 @@ public class SvnClient implements ScmClient
     @Override
     public String getUid(ScmContext context) throws ScmException
     {
-        return getInfo(context.getEnvironmentContext(), PATTERN_UUID, "Repository UUID");
-    }
-
-    private String getInfo(ExecutionContext executionContext, Pattern pattern, String description) throws ScmException
-    {
-        SvnCommandLine cl = new SvnCommandLine(config);
-        List<String> stdout = cl.run(executionContext, null, COMMAND_INFO, config.getUrl());
-        for (String line : stdout)
-        {
-            Matcher matcher = pattern.matcher(line);
-            if (matcher.matches())
-            {
-                return matcher.group(1);
-            }
-        }
-
-        throw new ScmException(description + " not found in info output ("
-                + StringUtils.join("\n", stdout) + ")");
+        return backend.getUuid(context.getEnvironmentContext());
     }
 
     @Override
@@ -135,9 +126,7 @@ public class SvnClient implements ScmClient
             revision = getLatestRevision(null);
         }
 
-        SvnCommandLine cl = new SvnCommandLine(config);
-        cl.run(context, handler, COMMAND_CHECKOUT, FLAG_REVISION, revision.getRevisionString(), FLAG_FORCE,
-                config.getUrl(), context.getWorkingDir().getAbsolutePath());
+        backend.checkout(context, handler, revision, context.getWorkingDir());
         return revision;
     }
 
@@ -147,38 +136,59 @@ public class SvnClient implements ScmClient
     {
         if (revision == null)
         {
-            revision = getLatestRevision(null);
+            revision = new Revision(backend.getLatestRevision(context));
+        }
+
+        if (isUpToDate(context.getWorkingDir(), revision))
+        {
+            if (handler != null)
+            {
+                handler.status("Working copy is unmodified at revision " + revision.getRevisionString() + ", skipping update");
+            }
+            return revision;
         }
 
-        SvnCommandLine cl = new SvnCommandLine(config);
-        cl.run(context, handler, COMMAND_UPDATE, FLAG_REVISION, revision.getRevisionString(), FLAG_FORCE,
-                context.getWorkingDir().getAbsolutePath());
+        backend.update(context, handler, revision, context.getWorkingDir());
         return revision;
     }
 
-    @Override
-    public InputStream retrieve(ScmContext context, String path, Revision revision)
-            throws ScmException
+    /**
+     * Checks, without forking svn, whether the given working copy is already
+     * checked out from our URL at the given revision with no local changes.
+     * In that case an update would be a no-op.  Any doubt (e.g. an older
+     * working copy format, or an unexpected error) is reported as false so
+     * that a real update is run.
+     */
+    private boolean isUpToDate(File workingDir, Revision revision)
     {
-        List<String> args = new LinkedList<String>();
-        args.add(COMMAND_CAT);
-        if (revision != null)
+        try
         {
-            args.add(FLAG_REVISION);
-            args.add(revision.getRevisionString());
+            long revisionNumber = Long.parseLong(revision.getRevisionString());
+            WorkingCopy workingCopy = WorkingCopy.read(workingDir);
+            return workingCopy != null &&
+                    workingCopy.getRevision() == revisionNumber &&
+                    workingCopy.getUrl().equals(SVNURL.parseURIEncoded(config.getUrl())) &&
+                    workingCopy.isUnmodified();
+        }
+        catch (NumberFormatException e)
+        {
+            return false;
+        }
+        catch (SVNException e)
+        {
+            return false;
+        }
+        catch (IOException e)
+        {
+            return false;
         }
-        args.add(join(config.getUrl(), path));
-
-        // This implementation is somewhat naive in its memory usage.
-        SvnCommandLine cl = new SvnCommandLine(config);
-        List<String> lines = cl.run(context.getEnvironmentContext(), null, args.toArray(new String[args.size()]));
-        String output = StringUtils.join("\n", lines);
-        return new ByteArrayInputStream(output.getBytes());
     }
 
-    private String join(String... urlElements)
+    @Override
+    public InputStream retrieve(ScmContext context, String path, Revision revision)
+            throws ScmException
     {
-        return StringUtils.join("/", true, urlElements);
+        return backend.retrieve(context.getEnvironmentContext(), path, revision);
     }
 
     @Override
@@ -208,14 +218,47 @@ public class SvnClient implements ScmClient
     @Override
     public Revision getLatestRevision(ScmContext context) throws ScmException
     {
-        return new Revision(getInfo(context.getEnvironmentContext(), PATTERN_LAST_REVISION, "Last changed revision"));
+        long checkedAt = System.currentTimeMillis();
+        long latest = backend.getLatestRevision(context.getEnvironmentContext());
+        RevisionTimeIndex index = RevisionTimeIndex.forLocation(getLocation(context));
+        if (latest < Math.max(index.getLatestSeen(), index.getCoveredTo()))
+        {
+            // Usually a check that raced with a newer one, but if a fresh
+            // check agrees the repository has gone backwards (e.g. it was
+            // reloaded) and what we know of it is stale.
+            checkedAt = System.currentTimeMillis();
+            latest = backend.getLatestRevision(context.getEnvironmentContext());
+            if (latest < Math.max(index.getLatestSeen(), index.getCoveredTo()))
+            {
+                RevisionTimeIndex.discard(getLocation(context));
+                ChangelistPrefetcher.discard(getLocation(context));
+                index = RevisionTimeIndex.forLocation(getLocation(context));
+            }
+        }
+
+        index.latestSeen(latest, checkedAt);
+        final RevisionTimeIndex fetchIndex = index;
+
+        // Pulse will usually wait out a quiet period before asking for the
+        // changes up to a new revision, so start fetching them now.
+        ChangelistPrefetcher.forLocation(getLocation(context)).revisionSeen(context.getEnvironmentContext(),
+                latest, new ChangelistPrefetcher.Fetcher()
+        {
+            @Override
+            public List<Changelist> fetch(ExecutionContext executionContext, long from, long to) throws ScmException
+            {
+                return fetchChanges(executionContext, fetchIndex, from, to, true);
+            }
+        });
+
+        return new Revision(latest);
     }
 
     @Override
     public List<Revision> getRevisions(ScmContext context, Revision from, Revision to)
             throws ScmException
     {
-        List<Changelist> changes = getChanges(null, from, to);
+        List<Changelist> changes = getChanges(context, from, to);
         Collections.sort(changes);
 
         List<Revision> result = new LinkedList<Revision>();
@@ -233,7 +276,7 @@ public class SvnClient implements ScmClient
     {
         if (toRevision == null)
         {
-            toRevision = getLatestRevision(null);
+            toRevision = getLatestRevision(context);
         }
 
         long from = Long.parseLong(fromRevision.getRevisionString()) + 1;
@@ -242,43 +285,14 @@ public class SvnClient implements ScmClient
 
         if (from <= to)
         {
-            SvnCommandLine commandLine = new SvnCommandLine(config);
-            List<String> lines = commandLine.run(context.getEnvironmentContext(), null, COMMAND_LOG, FLAG_REVISION,
-                    Long.toString(from) + ":" + Long.toString(to), FLAG_VERBOSE, FLAG_XML,
-                    config.getUrl());
-            changelists = LogParser.parse(StringUtils.join("", lines));
-            final Predicate<String> filter = new FilterPathsPredicate(config.getIncludedPaths(),
-                    config.getExcludedPaths());
-
-            // Remove all FileChange objects that are for filtered paths.
-            changelists = CollectionUtils.map(changelists, new Mapping<Changelist, Changelist>()
+            changelists = ChangelistPrefetcher.forLocation(getLocation(context)).getBuffered(from, to);
+            if (changelists == null)
             {
-                @Override
-                public Changelist map(Changelist c)
-                {
-                    return new Changelist(c.getRevision(), c.getTime(), c.getAuthor(), c
-                            .getComment(), CollectionUtils.filter(c.getChanges(),
-                            new Predicate<FileChange>()
-                            {
-                                @Override
-                                public boolean satisfied(FileChange fc)
-                                {
-                                    return filter.satisfied(fc.getPath());
-                                }
-
-                            }));
-                }
-            });
+                changelists = fetchChanges(context.getEnvironmentContext(),
+                        RevisionTimeIndex.forLocation(getLocation(context)), from, to, true);
+            }
 
-            // Remove all changelists that no longer have any file changes.
-            changelists = CollectionUtils.filter(changelists, new Predicate<Changelist>()
-            {
-                @Override
-                public boolean satisfied(Changelist c)
-                {
-                    return c.getChanges().size() > 0;
-                }
-            });
+            changelists = filterChanges(changelists);
         }
         else
         {
@@ -288,6 +302,56 @@ public class SvnClient implements ScmClient
         return changelists;
     }
 
+    /**
+     * Fetches all changelists in an inclusive range via the backend, adding
+     * them to the revision time index on the way.  The range may be given
+     * in either order.  When the changelists are only needed for the index
+     * their file changes are not fetched.
+     */
+    private List<Changelist> fetchChanges(ExecutionContext context, RevisionTimeIndex index, long from, long to,
+            boolean includeFiles) throws ScmException
+    {
+        List<Changelist> changelists = backend.getChanges(context, from, to, includeFiles);
+        index.addChangelists(Math.min(from, to), Math.max(from, to), changelists);
+        return changelists;
+    }
+
+    private List<Changelist> filterChanges(List<Changelist> changelists)
+    {
+        final Predicate<String> filter = new FilterPathsPredicate(config.getIncludedPaths(),
+                config.getExcludedPaths());
+
+        // Remove all FileChange objects that are for filtered paths.
+        changelists = CollectionUtils.map(changelists, new Mapping<Changelist, Changelist>()
+        {
+            @Override
+            public Changelist map(Changelist c)
+            {
+                return new Changelist(c.getRevision(), c.getTime(), c.getAuthor(), c
+                        .getComment(), CollectionUtils.filter(c.getChanges(),
+                        new Predicate<FileChange>()
+                        {
+                            @Override
+                            public boolean satisfied(FileChange fc)
+                            {
+                                return filter.satisfied(fc.getPath());
+                            }
+
+                        }));
+            }
+        });
+
+        // Remove all changelists that no longer have any file changes.
+        return CollectionUtils.filter(changelists, new Predicate<Changelist>()
+        {
+            @Override
+            public boolean satisfied(Changelist c)
+            {
+                return c.getChanges().size() > 0;
+            }
+        });
+    }
+
     @Override
     public Revision getPreviousRevision(ScmContext context, Revision revision, boolean isFile)
             throws ScmException
@@ -305,24 +369,164 @@ public class SvnClient implements ScmClient
     @Override
     public Revision parseRevision(ScmContext context, String revision) throws ScmException
     {
+        String spec = revision.trim();
+        if (spec.equalsIgnoreCase(REVISION_HEAD) || spec.equalsIgnoreCase(REVISION_COMMITTED))
+        {
+            // Our URL is our only item, so its last committed revision is
+            // also the head.
+            return getLatestRevision(context);
+        }
+        else if (spec.equalsIgnoreCase(REVISION_PREV))
+        {
+            long latest = Long.parseLong(getLatestRevision(context).getRevisionString());
+            if (latest < 1)
+            {
+                throw new ScmException("Revision '" + revision + "' does not exist in this repository");
+            }
+
+            return new Revision(latest - 1);
+        }
+
+        RevisionTimeIndex index = RevisionTimeIndex.forLocation(getLocation(context));
         try
         {
-            long revisionNumber = Long.parseLong(revision);
-            long latest = Long.parseLong(getLatestRevision(null).getRevisionString());
-            if (revisionNumber > latest)
+            long revisionNumber = Long.parseLong(spec);
+            // Revisions never disappear, so no need to go to the server for
+            // one we know exists.
+            if (revisionNumber > index.getLatestSeen())
             {
-                throw new ScmException("Revision '" + revision
-                        + "' does not exist in this repository");
+                long latest = Long.parseLong(getLatestRevision(context).getRevisionString());
+                if (revisionNumber > latest)
+                {
+                    throw new ScmException("Revision '" + revision
+                            + "' does not exist in this repository");
+                }
             }
 
             return new Revision(revisionNumber);
         } catch (NumberFormatException e)
         {
-            throw new ScmException("Invalid revision '" + revision
-                    + "': must be a valid revision number");
+            Long time = parseDate(spec);
+            if (time == null)
+            {
+                throw new ScmException("Invalid revision '" + revision
+                        + "': must be a valid revision number, date or one of " + REVISION_HEAD + ", "
+                        + REVISION_COMMITTED + " or " + REVISION_PREV);
+            }
+
+            return new Revision(resolveDate(context, index, revision, time));
+        }
+    }
+
+    private long resolveDate(ScmContext context, RevisionTimeIndex index, String revision, long time) throws ScmException
+    {
+        long revisionNumber = index.getRevisionAt(time);
+        if (revisionNumber == RevisionTimeIndex.UNKNOWN)
+        {
+            // Bring the index up to the latest revision, then extend it back
+            // only as far as needed to answer.
+            long latest = Long.parseLong(getLatestRevision(context).getRevisionString());
+            if (index.getCoveredTo() >= index.getCoveredFrom())
+            {
+                for (long chunkFrom = index.getCoveredTo() + 1; chunkFrom <= latest; chunkFrom += INDEX_CHUNK_SIZE)
+                {
+                    fetchChanges(context.getEnvironmentContext(), index, chunkFrom,
+                            Math.min(latest, chunkFrom + INDEX_CHUNK_SIZE - 1), false);
+                }
+            }
+
+            indexHistoryBackwards(context.getEnvironmentContext(), index, time, latest);
+            revisionNumber = index.getRevisionAt(time);
+            if (revisionNumber == RevisionTimeIndex.UNKNOWN)
+            {
+                // Either before the history we could find, or later than we
+                // have just checked.
+                revisionNumber = index.isBeforeIndexed(time) ? RevisionTimeIndex.NONE : latest;
+            }
+        }
+
+        if (revisionNumber == RevisionTimeIndex.NONE)
+        {
+            throw new ScmException("Invalid revision '" + revision + "': no changes at or before that date");
+        }
+
+        return revisionNumber;
+    }
+
+    /**
+     * Extends the index back from the oldest revision it covers (or from the
+     * latest revision if it is empty) until it can resolve the given time.
+     * History is fetched in chunks so that only the index, rather than the
+     * full changelists, is retained for long histories.  Each chunk is
+     * fetched newest first, so the log starts where our URL exists and
+     * follows it back to its creation.  If our URL does not exist at the
+     * start of a chunk, the index has already reached its creation.  This is
+     * recorded in the index so later lookups need not look further back.
+     */
+    private void indexHistoryBackwards(ExecutionContext context, RevisionTimeIndex index, long time, long latest)
+            throws ScmException
+    {
+        long chunkTo = index.getCoveredTo() < index.getCoveredFrom() ? latest : index.getCoveredFrom() - 1;
+        while (chunkTo >= 1 && index.isBeforeIndexed(time) && index.getRevisionAt(time) == RevisionTimeIndex.UNKNOWN)
+        {
+            try
+            {
+                fetchChanges(context, index, chunkTo, Math.max(1, chunkTo - INDEX_CHUNK_SIZE + 1), false);
+            }
+            catch (SvnPathNotFoundException e)
+            {
+                if (chunkTo == latest)
+                {
+                    throw e;
+                }
+
+                index.historyStartsAt(chunkTo + 1);
+                break;
+            }
+
+            chunkTo = index.getCoveredFrom() - 1;
         }
     }
 
+    /**
+     * Parses a date revision in one of the forms accepted by svn, e.g.
+     * {@code {2009-06-08 17:31}}.  The braces are optional, as is the time.
+     * Dates are taken to be in the local time zone unless suffixed with Z
+     * for UTC.
+     *
+     * @return the date in milliseconds since the epoch, or null if the
+     *         string is not a valid date
+     */
+    private static Long parseDate(String spec)
+    {
+        if (spec.startsWith("{") && spec.endsWith("}"))
+        {
+            spec = spec.substring(1, spec.length() - 1).trim();
+        }
+
+        TimeZone timeZone = TimeZone.getDefault();
+        if (spec.endsWith("Z"))
+        {
+            spec = spec.substring(0, spec.length() - 1);
+            timeZone = TimeZone.getTimeZone("UTC");
+        }
+
+        for (String format : DATE_FORMATS)
+        {
+            SimpleDateFormat dateFormat = new SimpleDateFormat(format);
+            dateFormat.setLenient(false);
+            dateFormat.setTimeZone(timeZone);
+            ParsePosition position = new ParsePosition(0);
+            Date date = dateFormat.parse(spec, position);
+            if (date != null && position.getIndex() == spec.length())
+            {
+                return date.getTime();
+            }
+        }
+
+        return null;
+    }
+
     @Override
     public List<ScmFile> browse(ScmContext context, String path, Revision revision)
             throws ScmException
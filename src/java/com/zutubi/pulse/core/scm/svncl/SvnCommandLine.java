@@ -5,6 +5,7 @@ import static com.zutubi.pulse.core.scm.svncl.SvnConstants.COMMAND_SVN;
 import static com.zutubi.pulse.core.scm.svncl.SvnConstants.FLAG_NON_INTERACTIVE;
 import static com.zutubi.pulse.core.scm.svncl.SvnConstants.FLAG_PASSWORD;
 import static com.zutubi.pulse.core.scm.svncl.SvnConstants.FLAG_USER;
+import static com.zutubi.pulse.core.scm.svncl.SvnConstants.PATTERN_PATH_NOT_FOUND;
 
 import java.util.Arrays;
 import java.util.LinkedList;
@@ -43,32 +44,56 @@ public class SvnCommandLine
      * @param arguments arguments to pass to the svn command, e.g.
      *                  {@code {"info", "svn://myserver/myproject"}}
      * @return standard output from the command, as a list of individual lines
-     * @throws ScmException on any error, including a non-zero exit code from
-     *                      the child process
+     * @throws SvnPathNotFoundException if svn reports that a path does not
+     *                                  exist
+     * @throws ScmException on any other error, including a non-zero exit
+     *                      code from the child process
      */
     public List<String> run(final ExecutionContext executionContext, final ScmFeedbackHandler handler, String... arguments)
             throws ScmException
     {
         final List<String> output = new LinkedList<String>();
+        final boolean[] pathNotFound = new boolean[]{false};
         ScmProcessRunner runner = new ScmProcessRunner("svn", executionContext);
         runner.setInactivityTimeout(config.getInactivityTimeout());
-        runner.runProcess(new ScmLineHandlerSupport()
+        try
         {
-            @Override
-            public void handleStdout(String line)
+            runner.runProcess(new ScmLineHandlerSupport()
             {
-                output.add(line);
-            }
+                @Override
+                public void handleStdout(String line)
+                {
+                    output.add(line);
+                }
 
-            @Override
-            public void handleCommandLine(String commandLine)
-            {
-                if (handler != null)
+                @Override
+                public void handleStderr(String line)
                 {
-                    handler.status(">> " + getCleanedCommandLine(commandLine));
+                    super.handleStderr(line);
+                    if (PATTERN_PATH_NOT_FOUND.matcher(line).find())
+                    {
+                        pathNotFound[0] = true;
+                    }
                 }
+
+                @Override
+                public void handleCommandLine(String commandLine)
+                {
+                    if (handler != null)
+                    {
+                        handler.status(">> " + getCleanedCommandLine(commandLine));
+                    }
+                }
+            }, resolveCommand(arguments));
+        }
+        catch (ScmException e)
+        {
+            if (pathNotFound[0])
+            {
+                throw new SvnPathNotFoundException(e.getMessage(), e);
             }
-        }, resolveCommand(arguments));
+            throw e;
+        }
 
         return output;
     }
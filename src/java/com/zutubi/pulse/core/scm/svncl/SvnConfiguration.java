@@ -21,6 +21,9 @@ public class SvnConfiguration extends PollableScmConfiguration
     @Wizard.Ignore
     @Numeric(min = 0)
     private int inactivityTimeout;
+    @Wizard.Ignore
+    @Required
+    private SvnBackendType backend = SvnBackendType.COMMAND_LINE;
     
     public SvnConfiguration()
     {
@@ -78,4 +81,14 @@ public class SvnConfiguration extends PollableScmConfiguration
 	{
 		this.inactivityTimeout = inactivityTimeout;
 	}
+
+	public SvnBackendType getBackend()
+	{
+		return backend;
+	}
+
+	public void setBackend(SvnBackendType backend)
+	{
+		this.backend = backend;
+	}
 }
@@ -11,6 +11,7 @@ public class SvnConstants
     
     public static final String COMMAND_CAT = "cat";
     public static final String COMMAND_CHECKOUT = "checkout";
+    public static final String COMMAND_EXPORT = "export";
     public static final String COMMAND_INFO = "info";
     public static final String COMMAND_LOG = "log";
     public static final String COMMAND_UPDATE = "update";
@@ -23,6 +24,14 @@ public class SvnConstants
     public static final String FLAG_VERBOSE = "--verbose";
     public static final String FLAG_XML = "--xml";
     
+    public static final String REVISION_COMMITTED = "COMMITTED";
+    public static final String REVISION_HEAD = "HEAD";
+    public static final String REVISION_PREV = "PREV";
+
+    // Error codes for a missing path: SVN_ERR_FS_NOT_FOUND,
+    // SVN_ERR_RA_DAV_PATH_NOT_FOUND and SVN_ERR_CLIENT_UNRELATED_RESOURCES
+    // (no location for a URL in an older revision).
+    public static final Pattern PATTERN_PATH_NOT_FOUND = Pattern.compile("\\bE(160013|175007|195012):");
     public static final Pattern PATTERN_LAST_REVISION = Pattern.compile("Last Changed Rev:\\s+([0-9]+)");
     public static final Pattern PATTERN_UUID = Pattern.compile("Repository UUID:\\s+(.+)");    
 }
@@ -0,0 +1,518 @@
+package com.zutubi.pulse.core.scm.svncl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.tmatesoft.svn.core.ISVNLogEntryHandler;
+import org.tmatesoft.svn.core.SVNCancelException;
+import org.tmatesoft.svn.core.SVNDepth;
+import org.tmatesoft.svn.core.SVNDirEntry;
+import org.tmatesoft.svn.core.SVNErrorCode;
+import org.tmatesoft.svn.core.SVNErrorMessage;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNLogEntry;
+import org.tmatesoft.svn.core.SVNLogEntryPath;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.auth.BasicAuthenticationManager;
+import org.tmatesoft.svn.core.auth.SVNAuthentication;
+import org.tmatesoft.svn.core.auth.SVNPasswordAuthentication;
+import org.tmatesoft.svn.core.auth.SVNSSHAuthentication;
+import org.tmatesoft.svn.core.auth.SVNUserNameAuthentication;
+import org.tmatesoft.svn.core.internal.io.dav.DAVRepositoryFactory;
+import org.tmatesoft.svn.core.internal.io.fs.FSRepositoryFactory;
+import org.tmatesoft.svn.core.internal.io.svn.SVNRepositoryFactoryImpl;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.wc.DefaultSVNRepositoryPool;
+import org.tmatesoft.svn.core.wc.ISVNEventHandler;
+import org.tmatesoft.svn.core.wc.SVNClientManager;
+import org.tmatesoft.svn.core.wc.SVNEvent;
+import org.tmatesoft.svn.core.wc.SVNEventAction;
+import org.tmatesoft.svn.core.wc.SVNRevision;
+import org.tmatesoft.svn.core.wc.SVNWCUtil;
+
+import com.zutubi.pulse.core.engine.api.ExecutionContext;
+import com.zutubi.pulse.core.scm.api.Changelist;
+import com.zutubi.pulse.core.scm.api.FileChange;
+import com.zutubi.pulse.core.scm.api.Revision;
+import com.zutubi.pulse.core.scm.api.ScmCancelledException;
+import com.zutubi.pulse.core.scm.api.ScmException;
+import com.zutubi.pulse.core.scm.api.ScmFeedbackHandler;
+
+/**
+ * An {@link SvnBackend} that runs Subversion operations in process using
+ * SVNKit, avoiding the cost of forking svn for every call.
+ * <p/>
+ * Repository connections are pooled in a session per location and shared
+ * between backend instances, as clients (and thus backends) are created
+ * per operation.  Sessions are counted in and out of use, so a session that
+ * is replaced, evicted or discarded is only disposed of once the last
+ * operation using it completes.  Log entries are converted directly to
+ * changelists rather than going via XML.
+ */
+public class SvnKitBackend implements SvnBackend
+{
+    private static final int MAX_SESSIONS = 32;
+    // How long an idle pooled connection is kept open, in milliseconds.
+    private static final long CONNECTION_TIMEOUT = 60000;
+
+    private static final Map<String, Session> sessions = new LinkedHashMap<String, Session>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Session> eldest)
+        {
+            if (size() > MAX_SESSIONS)
+            {
+                eldest.getValue().retire();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    static
+    {
+        DAVRepositoryFactory.setup();
+        SVNRepositoryFactoryImpl.setup();
+        FSRepositoryFactory.setup();
+    }
+
+    private final SvnConfiguration config;
+
+    public SvnKitBackend(SvnConfiguration config)
+    {
+        this.config = config;
+    }
+
+    @Override
+    public String getUuid(ExecutionContext context) throws ScmException
+    {
+        Session session = acquireSession();
+        try
+        {
+            return session.getRepository().getRepositoryUUID(true);
+        }
+        catch (SVNException e)
+        {
+            throw convertException(e);
+        }
+        finally
+        {
+            releaseSession(session);
+        }
+    }
+
+    @Override
+    public long getLatestRevision(ExecutionContext context) throws ScmException
+    {
+        Session session = acquireSession();
+        try
+        {
+            SVNDirEntry entry = session.getRepository().info("", -1);
+            if (entry == null)
+            {
+                throw new ScmException("Path '" + config.getUrl() + "' does not exist in the repository");
+            }
+            return entry.getRevision();
+        }
+        catch (SVNException e)
+        {
+            throw convertException(e);
+        }
+        finally
+        {
+            releaseSession(session);
+        }
+    }
+
+    @Override
+    public void checkout(ExecutionContext context, ScmFeedbackHandler handler, Revision revision, File dir)
+            throws ScmException
+    {
+        Session session = acquireSession();
+        FeedbackEventHandler eventHandler = new FeedbackEventHandler(handler);
+        try
+        {
+            if (handler != null)
+            {
+                handler.status(">> checkout " + revision.getRevisionString() + " " + config.getUrl() + " " + dir.getAbsolutePath());
+            }
+
+            SVNRevision svnRevision = SVNRevision.create(parseRevision(revision));
+            session.createClientManager(eventHandler).getUpdateClient().doCheckout(session.getUrl(), dir, svnRevision, svnRevision,
+                    SVNDepth.INFINITY, true);
+        }
+        catch (SVNException e)
+        {
+            throw eventHandler.convertException(e);
+        }
+        finally
+        {
+            releaseSession(session);
+        }
+    }
+
+    @Override
+    public void update(ExecutionContext context, ScmFeedbackHandler handler, Revision revision, File dir)
+            throws ScmException
+    {
+        Session session = acquireSession();
+        FeedbackEventHandler eventHandler = new FeedbackEventHandler(handler);
+        try
+        {
+            if (handler != null)
+            {
+                handler.status(">> update " + revision.getRevisionString() + " " + dir.getAbsolutePath());
+            }
+
+            session.createClientManager(eventHandler).getUpdateClient().doUpdate(dir, SVNRevision.create(parseRevision(revision)),
+                    SVNDepth.INFINITY, true, false);
+        }
+        catch (SVNException e)
+        {
+            throw eventHandler.convertException(e);
+        }
+        finally
+        {
+            releaseSession(session);
+        }
+    }
+
+    @Override
+    public InputStream retrieve(ExecutionContext context, String path, Revision revision) throws ScmException
+    {
+        Session session = acquireSession();
+        try
+        {
+            // Like svn cat, keywords and end of line styles are applied.
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            SVNURL url = session.getUrl().appendPath(path, false);
+            SVNRevision svnRevision = revision == null ? SVNRevision.HEAD : SVNRevision.create(parseRevision(revision));
+            session.createClientManager(null).getWCClient().doGetFileContents(url, svnRevision, svnRevision, true,
+                    output);
+            return new ByteArrayInputStream(output.toByteArray());
+        }
+        catch (SVNException e)
+        {
+            throw convertException(e);
+        }
+        finally
+        {
+            releaseSession(session);
+        }
+    }
+
+    @Override
+    public List<Changelist> getChanges(ExecutionContext context, long from, long to, boolean includeFiles)
+            throws ScmException
+    {
+        final List<Changelist> result = new LinkedList<Changelist>();
+        Session session = acquireSession();
+        try
+        {
+            session.getRepository().log(new String[]{""}, from, to, includeFiles, false, new ISVNLogEntryHandler()
+            {
+                @Override
+                public void handleLogEntry(SVNLogEntry entry) throws SVNException
+                {
+                    result.add(convertLogEntry(entry));
+                }
+            });
+        }
+        catch (SVNException e)
+        {
+            throw convertException(e);
+        }
+        finally
+        {
+            releaseSession(session);
+        }
+
+        return result;
+    }
+
+    @Override
+    public void destroy()
+    {
+        synchronized (sessions)
+        {
+            Session session = sessions.remove(getLocation());
+            if (session != null)
+            {
+                session.retire();
+            }
+        }
+    }
+
+    private Changelist convertLogEntry(SVNLogEntry entry)
+    {
+        Revision revision = new Revision(entry.getRevision());
+        List<FileChange> changes = new LinkedList<FileChange>();
+        // Sorted by path for a stable order.
+        Map<String, SVNLogEntryPath> changedPaths = new TreeMap<String, SVNLogEntryPath>(entry.getChangedPaths());
+        for (SVNLogEntryPath changedPath : changedPaths.values())
+        {
+            changes.add(new FileChange(changedPath.getPath(), revision, LogParser.convertAction(changedPath.getType())));
+        }
+
+        String author = entry.getAuthor() == null ? "anonymous" : entry.getAuthor();
+        String message = entry.getMessage() == null ? "" : entry.getMessage();
+        long time = entry.getDate() == null ? 0 : entry.getDate().getTime();
+        return new Changelist(revision, time, author, message, changes);
+    }
+
+    private long parseRevision(Revision revision) throws ScmException
+    {
+        try
+        {
+            return Long.parseLong(revision.getRevisionString());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new ScmException("Invalid revision '" + revision.getRevisionString() + "': must be a valid revision number");
+        }
+    }
+
+    private String getLocation()
+    {
+        return config.getUsername() + "@" + config.getUrl();
+    }
+
+    /**
+     * Gets the session for this backend's location, creating it if there is
+     * none or the existing one was created with different settings.  The
+     * session must be released via {@link #releaseSession(Session)} after
+     * use.
+     *
+     * @return the session, marked as in use
+     * @throws ScmException if a new session cannot be created
+     */
+    private Session acquireSession() throws ScmException
+    {
+        String location = getLocation();
+        synchronized (sessions)
+        {
+            Session session = sessions.get(location);
+            if (session == null || !session.matches(config))
+            {
+                if (session != null)
+                {
+                    sessions.remove(location);
+                    session.retire();
+                }
+
+                try
+                {
+                    session = new Session(config);
+                }
+                catch (SVNException e)
+                {
+                    throw convertException(e);
+                }
+                sessions.put(location, session);
+            }
+
+            session.users++;
+            return session;
+        }
+    }
+
+    private void releaseSession(Session session)
+    {
+        synchronized (sessions)
+        {
+            session.users--;
+            if (session.retired && session.users == 0)
+            {
+                session.dispose();
+            }
+        }
+    }
+
+    private static ScmException convertException(SVNException e)
+    {
+        SVNErrorCode code = e.getErrorMessage().getErrorCode();
+        if (code == SVNErrorCode.FS_NOT_FOUND || code == SVNErrorCode.RA_DAV_PATH_NOT_FOUND ||
+                code == SVNErrorCode.CLIENT_UNRELATED_RESOURCES)
+        {
+            return new SvnPathNotFoundException(e.getMessage(), e);
+        }
+        return new ScmException(e.getMessage(), e);
+    }
+
+    /**
+     * Holds the pooled connections for a single location, along with the
+     * settings they were created with.  The pool caches a repository per
+     * thread, so sessions may be shared between threads.  Usage is tracked
+     * under the lock on the session map.
+     */
+    private static class Session
+    {
+        private final SVNURL url;
+        private final String password;
+        private final int inactivityTimeout;
+        private final DefaultSVNRepositoryPool pool;
+        private int users = 0;
+        private boolean retired = false;
+
+        private Session(SvnConfiguration config) throws SVNException
+        {
+            url = SVNURL.parseURIEncoded(config.getUrl());
+            password = config.getPassword();
+            inactivityTimeout = config.getInactivityTimeout();
+
+            // The same authentications BasicAuthenticationManager.newInstance
+            // creates, but that returns a fixed class and we need to supply
+            // the read timeout.
+            String username = config.getUsername();
+            char[] passwordChars = password == null ? new char[0] : password.toCharArray();
+            SVNAuthentication[] authentications = new SVNAuthentication[]{
+                    SVNPasswordAuthentication.newInstance(username, passwordChars, false, null, false),
+                    SVNSSHAuthentication.newInstance(username, passwordChars, -1, false, null, false),
+                    SVNUserNameAuthentication.newInstance(username, false, null, false)
+            };
+            BasicAuthenticationManager authenticationManager = new BasicAuthenticationManager(authentications)
+            {
+                @Override
+                public int getReadTimeout(SVNRepository repository)
+                {
+                    // Closest equivalent to the inactivity timeout for a
+                    // forked process.
+                    return inactivityTimeout > 0 ? inactivityTimeout * 1000 : super.getReadTimeout(repository);
+                }
+            };
+            pool = new DefaultSVNRepositoryPool(authenticationManager, SVNWCUtil.createDefaultOptions(true),
+                    CONNECTION_TIMEOUT, true);
+        }
+
+        /**
+         * Indicates if this session was created with the same settings as
+         * the given configuration, which is known to be for the same
+         * location.
+         */
+        private boolean matches(SvnConfiguration config)
+        {
+            String configPassword = config.getPassword();
+            return (password == null ? configPassword == null : password.equals(configPassword)) &&
+                    inactivityTimeout == config.getInactivityTimeout();
+        }
+
+        private SVNURL getUrl()
+        {
+            return url;
+        }
+
+        private SVNRepository getRepository() throws SVNException
+        {
+            return pool.createRepository(url, true);
+        }
+
+        private SVNClientManager createClientManager(ISVNEventHandler eventHandler)
+        {
+            // Client managers are cheap and not thread safe, so one is used
+            // per operation.  The underlying connections come from the pool.
+            SVNClientManager clientManager = SVNClientManager.newInstance(SVNWCUtil.createDefaultOptions(true), pool);
+            clientManager.setEventHandler(eventHandler);
+            return clientManager;
+        }
+
+        /**
+         * Marks the session as no longer available for new operations,
+         * disposing of it now if it is not in use.
+         */
+        private void retire()
+        {
+            retired = true;
+            if (users == 0)
+            {
+                dispose();
+            }
+        }
+
+        private void dispose()
+        {
+            pool.dispose();
+        }
+    }
+
+    /**
+     * Reports working copy changes to a feedback handler in the same form
+     * as the command-line client, and passes on cancellation requests.
+     */
+    private static class FeedbackEventHandler implements ISVNEventHandler
+    {
+        private final ScmFeedbackHandler handler;
+        private ScmCancelledException cancelledException;
+
+        private FeedbackEventHandler(ScmFeedbackHandler handler)
+        {
+            this.handler = handler;
+        }
+
+        @Override
+        public void handleEvent(SVNEvent event, double progress) throws SVNException
+        {
+            if (handler != null && event.getFile() != null)
+            {
+                String code = getActionCode(event.getAction());
+                if (code != null)
+                {
+                    handler.status(code + "    " + event.getFile().getPath());
+                }
+            }
+        }
+
+        private String getActionCode(SVNEventAction action)
+        {
+            if (action == SVNEventAction.UPDATE_ADD)
+            {
+                return "A";
+            }
+            else if (action == SVNEventAction.UPDATE_DELETE)
+            {
+                return "D";
+            }
+            else if (action == SVNEventAction.UPDATE_UPDATE)
+            {
+                return "U";
+            }
+            else if (action == SVNEventAction.UPDATE_EXISTS)
+            {
+                return "E";
+            }
+            else if (action == SVNEventAction.UPDATE_REPLACE)
+            {
+                return "R";
+            }
+            return null;
+        }
+
+        @Override
+        public void checkCancelled() throws SVNCancelException
+        {
+            if (handler != null)
+            {
+                try
+                {
+                    handler.checkCancelled();
+                }
+                catch (ScmCancelledException e)
+                {
+                    cancelledException = e;
+                    throw new SVNCancelException(SVNErrorMessage.create(SVNErrorCode.CANCELLED, e.getMessage()));
+                }
+            }
+        }
+
+        private ScmException convertException(SVNException e)
+        {
+            return cancelledException == null ? SvnKitBackend.convertException(e) : cancelledException;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.zutubi.pulse.core.scm.svncl;
+
+import com.zutubi.pulse.core.scm.api.ScmException;
+
+/**
+ * Raised by an {@link SvnBackend} when the path an operation refers to does
+ * not exist in the repository at the requested revision.
+ */
+public class SvnPathNotFoundException extends ScmException
+{
+    public SvnPathNotFoundException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,319 @@
+package com.zutubi.pulse.core.scm.svncl;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.tmatesoft.sqljet.core.SqlJetException;
+import org.tmatesoft.sqljet.core.table.ISqlJetCursor;
+import org.tmatesoft.sqljet.core.table.ISqlJetTransaction;
+import org.tmatesoft.sqljet.core.table.SqlJetDb;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+
+/**
+ * Reads the state of a Subversion working copy directly from its
+ * .svn/wc.db metadata, without forking svn.  Only the single-database
+ * format introduced in Subversion 1.7 is supported: older working copies
+ * are reported as unreadable and should be handled by svn itself.
+ * <p/>
+ * This is used to detect when an update would be a no-op, so the answers
+ * err on the side of caution: anything unusual (local changes, switched or
+ * mixed-revision nodes, externals, locks, pending work) means the working
+ * copy is not considered unmodified.
+ */
+public class WorkingCopy
+{
+    private static final String ADMIN_DIR = ".svn";
+    private static final String WC_DB = "wc.db";
+    // The first format released, in Subversion 1.7.
+    private static final int MIN_FORMAT = 29;
+
+    private static final String TABLE_ACTUAL_NODE = "ACTUAL_NODE";
+    private static final String TABLE_EXTERNALS = "EXTERNALS";
+    private static final String TABLE_NODES = "NODES";
+    private static final String TABLE_REPOSITORY = "REPOSITORY";
+    private static final String TABLE_WC_LOCK = "WC_LOCK";
+    private static final String TABLE_WORK_QUEUE = "WORK_QUEUE";
+
+    private static final String COLUMN_FILE_EXTERNAL = "file_external";
+    private static final String COLUMN_KIND = "kind";
+    private static final String COLUMN_LAST_MOD_TIME = "last_mod_time";
+    private static final String COLUMN_LOCAL_RELPATH = "local_relpath";
+    private static final String COLUMN_OP_DEPTH = "op_depth";
+    private static final String COLUMN_PRESENCE = "presence";
+    private static final String COLUMN_REPOS_ID = "repos_id";
+    private static final String COLUMN_REPOS_PATH = "repos_path";
+    private static final String COLUMN_REVISION = "revision";
+    private static final String COLUMN_ROOT = "root";
+    private static final String COLUMN_TRANSLATED_SIZE = "translated_size";
+
+    private static final String KIND_DIR = "dir";
+    private static final String KIND_FILE = "file";
+    private static final String PRESENCE_NORMAL = "normal";
+
+    private final File root;
+    private final SVNURL url;
+    private final long revision;
+
+    private WorkingCopy(File root, SVNURL url, long revision)
+    {
+        this.root = root;
+        this.url = url;
+        this.revision = revision;
+    }
+
+    /**
+     * Reads the base revision and URL of the working copy rooted at the
+     * given directory.
+     *
+     * @param dir root directory of the working copy
+     * @return details of the working copy, or null if the directory does
+     *         not hold a readable (Subversion 1.7 or later) working copy
+     * @throws IOException on any error reading the metadata
+     */
+    public static WorkingCopy read(final File dir) throws IOException
+    {
+        File dbFile = getDbFile(dir);
+        if (!dbFile.isFile())
+        {
+            return null;
+        }
+
+        return (WorkingCopy) runReadTransaction(dbFile, new ISqlJetTransaction()
+        {
+            @Override
+            public Object run(SqlJetDb db) throws SqlJetException
+            {
+                if (db.getOptions().getUserVersion() < MIN_FORMAT)
+                {
+                    return null;
+                }
+
+                ISqlJetCursor nodes = db.getTable(TABLE_NODES).open();
+                try
+                {
+                    while (!nodes.eof())
+                    {
+                        if (nodes.getInteger(COLUMN_OP_DEPTH) == 0 && "".equals(nodes.getString(COLUMN_LOCAL_RELPATH)))
+                        {
+                            if (nodes.isNull(COLUMN_REPOS_ID) || nodes.isNull(COLUMN_REPOS_PATH) || nodes.isNull(COLUMN_REVISION))
+                            {
+                                return null;
+                            }
+
+                            String reposRoot = getRepositoryRoot(db, nodes.getInteger(COLUMN_REPOS_ID));
+                            if (reposRoot == null)
+                            {
+                                return null;
+                            }
+
+                            // The root is stored URI-encoded, but the path
+                            // is not.
+                            SVNURL url;
+                            try
+                            {
+                                url = SVNURL.parseURIEncoded(reposRoot).appendPath(nodes.getString(COLUMN_REPOS_PATH), false);
+                            }
+                            catch (SVNException e)
+                            {
+                                return null;
+                            }
+
+                            return new WorkingCopy(dir, url, nodes.getInteger(COLUMN_REVISION));
+                        }
+
+                        nodes.next();
+                    }
+
+                    return null;
+                }
+                finally
+                {
+                    nodes.close();
+                }
+            }
+        });
+    }
+
+    private static String getRepositoryRoot(SqlJetDb db, long reposId) throws SqlJetException
+    {
+        ISqlJetCursor repository = db.getTable(TABLE_REPOSITORY).open();
+        try
+        {
+            return repository.goTo(reposId) ? repository.getString(COLUMN_ROOT) : null;
+        }
+        finally
+        {
+            repository.close();
+        }
+    }
+
+    /**
+     * @return the URL the root of this working copy is checked out from
+     */
+    public SVNURL getUrl()
+    {
+        return url;
+    }
+
+    /**
+     * @return the base revision of the root of this working copy
+     */
+    public long getRevision()
+    {
+        return revision;
+    }
+
+    /**
+     * Checks if this working copy is entirely at its base revision with no
+     * local modifications.  Files are checked by comparing their size and
+     * modification time against those recorded in the metadata, in the same
+     * way svn status avoids reading file contents.
+     *
+     * @return true if the working copy is known to be unmodified, false if
+     *         it may have been modified
+     * @throws IOException on any error reading the metadata
+     */
+    public boolean isUnmodified() throws IOException
+    {
+        return (Boolean) runReadTransaction(getDbFile(root), new ISqlJetTransaction()
+        {
+            @Override
+            public Object run(SqlJetDb db) throws SqlJetException
+            {
+                for (String table : new String[]{TABLE_ACTUAL_NODE, TABLE_EXTERNALS, TABLE_WC_LOCK, TABLE_WORK_QUEUE})
+                {
+                    if (db.getSchema().getTable(table) != null && !isEmpty(db, table))
+                    {
+                        return false;
+                    }
+                }
+
+                boolean hasFileExternal = db.getSchema().getTable(TABLE_NODES).getColumn(COLUMN_FILE_EXTERNAL) != null;
+                ISqlJetCursor nodes = db.getTable(TABLE_NODES).open();
+                try
+                {
+                    while (!nodes.eof())
+                    {
+                        boolean unmodified = nodes.getInteger(COLUMN_OP_DEPTH) == 0 &&
+                                PRESENCE_NORMAL.equals(nodes.getString(COLUMN_PRESENCE)) &&
+                                !nodes.isNull(COLUMN_REVISION) && nodes.getInteger(COLUMN_REVISION) == revision &&
+                                !(hasFileExternal && !nodes.isNull(COLUMN_FILE_EXTERNAL)) &&
+                                isUnmodified(nodes.getString(COLUMN_LOCAL_RELPATH), nodes.getString(COLUMN_KIND),
+                                        getOptionalInteger(nodes, COLUMN_TRANSLATED_SIZE),
+                                        getOptionalInteger(nodes, COLUMN_LAST_MOD_TIME));
+                        if (!unmodified)
+                        {
+                            return false;
+                        }
+
+                        nodes.next();
+                    }
+
+                    return true;
+                }
+                finally
+                {
+                    nodes.close();
+                }
+            }
+        });
+    }
+
+    private boolean isUnmodified(String localRelpath, String kind, Long translatedSize, Long lastModTime)
+    {
+        if (localRelpath == null)
+        {
+            return false;
+        }
+
+        File file = new File(root, localRelpath);
+        if (KIND_DIR.equals(kind))
+        {
+            return file.isDirectory();
+        }
+        else if (KIND_FILE.equals(kind))
+        {
+            if (translatedSize == null || lastModTime == null || !file.isFile())
+            {
+                return false;
+            }
+
+            // The metadata records microseconds, but some JVMs only report
+            // whole seconds.
+            long recordedMillis = lastModTime / 1000;
+            long actualMillis = file.lastModified();
+            boolean timeMatches = actualMillis == recordedMillis ||
+                    (actualMillis % 1000 == 0 && actualMillis / 1000 == recordedMillis / 1000);
+            return timeMatches && file.length() == translatedSize;
+        }
+        else
+        {
+            // Symlinks and anything else: leave them to svn.
+            return false;
+        }
+    }
+
+    private static File getDbFile(File dir)
+    {
+        return new File(new File(dir, ADMIN_DIR), WC_DB);
+    }
+
+    /**
+     * Runs a read transaction against a working copy database.  SqlJet
+     * follows the SQLite locking and journal protocols, so it will neither
+     * read a database svn is part way through changing nor be confused by a
+     * journal left behind.  The database is opened for writing so that,
+     * like svn, SqlJet can roll back the journal of an interrupted
+     * transaction.  Nothing is written otherwise.
+     */
+    private static Object runReadTransaction(File dbFile, ISqlJetTransaction transaction) throws IOException
+    {
+        try
+        {
+            SqlJetDb db = SqlJetDb.open(dbFile, true);
+            try
+            {
+                return db.runReadTransaction(transaction);
+            }
+            finally
+            {
+                db.close();
+            }
+        }
+        catch (SqlJetException e)
+        {
+            throw createException(e);
+        }
+        catch (RuntimeException e)
+        {
+            // SqlJet reports some I/O failures unchecked.
+            throw createException(e);
+        }
+    }
+
+    private static IOException createException(Exception cause)
+    {
+        IOException e = new IOException("Unable to read working copy database: " + cause.getMessage());
+        e.initCause(cause);
+        return e;
+    }
+
+    private static boolean isEmpty(SqlJetDb db, String table) throws SqlJetException
+    {
+        ISqlJetCursor cursor = db.getTable(table).open();
+        try
+        {
+            return cursor.eof();
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+    private static Long getOptionalInteger(ISqlJetCursor cursor, String column) throws SqlJetException
+    {
+        return cursor.isNull(column) ? null : cursor.getInteger(column);
+    }
+}
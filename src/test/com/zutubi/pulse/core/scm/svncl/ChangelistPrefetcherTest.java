@@ -0,0 +1,394 @@
+package com.zutubi.pulse.core.scm.svncl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zutubi.pulse.core.engine.api.ExecutionContext;
+import com.zutubi.pulse.core.scm.api.Changelist;
+import com.zutubi.pulse.core.scm.api.FileChange;
+import com.zutubi.pulse.core.scm.api.Revision;
+import com.zutubi.pulse.core.scm.api.ScmException;
+
+/**
+ * Tests for {@link ChangelistPrefetcher}, using fetchers that block until
+ * released so the state of the background fetches can be controlled.
+ */
+public class ChangelistPrefetcherTest
+{
+    private static final long TIMEOUT = 10;
+
+    private ChangelistPrefetcher prefetcher;
+    private List<StubFetcher> fetchers;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp()
+    {
+        prefetcher = new ChangelistPrefetcher();
+        fetchers = new LinkedList<StubFetcher>();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        // Never leave the shared prefetch threads blocked.
+        for (StubFetcher fetcher : fetchers)
+        {
+            fetcher.release();
+        }
+
+        prefetcher.cancel();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testFirstRevisionIsBaseline() throws Exception
+    {
+        StubFetcher fetcher = newFetcher(true);
+        prefetcher.revisionSeen(null, 10, fetcher);
+        assertNull(prefetcher.getBuffered(10, 10));
+        assertNull(prefetcher.getBuffered(11, 11));
+        assertTrue(fetcher.calls.isEmpty());
+    }
+
+    @Test
+    public void testBufferedHit() throws Exception
+    {
+        StubFetcher fetcher = newFetcher(true);
+        prefetcher.revisionSeen(null, 10, fetcher);
+        prefetcher.revisionSeen(null, 15, fetcher);
+        fetcher.awaitStarted();
+        assertRevisions(11, 15, prefetcher.getBuffered(11, 15));
+
+        assertRevisions(12, 14, prefetcher.getBuffered(12, 14));
+        assertEquals(1, fetcher.calls.size());
+        assertEquals("11-15", fetcher.calls.get(0));
+    }
+
+    @Test
+    public void testOutsideBuffer() throws Exception
+    {
+        StubFetcher fetcher = newFetcher(true);
+        prefetcher.revisionSeen(null, 10, fetcher);
+        prefetcher.revisionSeen(null, 15, fetcher);
+        fetcher.awaitStarted();
+        assertNotNull(prefetcher.getBuffered(11, 15));
+
+        assertNull(prefetcher.getBuffered(10, 15));
+        assertNull(prefetcher.getBuffered(11, 16));
+    }
+
+    @Test
+    public void testWaitsForStartedPrefetch() throws Exception
+    {
+        StubFetcher fetcher = newFetcher(false);
+        prefetcher.revisionSeen(null, 10, fetcher);
+        prefetcher.revisionSeen(null, 15, fetcher);
+        fetcher.awaitStarted();
+
+        Future<List<Changelist>> result = getBufferedInBackground(11, 15);
+        assertBlocked(result);
+
+        fetcher.release();
+        assertRevisions(11, 15, result.get(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testQueuedPrefetchCancelled() throws Exception
+    {
+        // Tie up all of the prefetch threads with other locations.
+        ChangelistPrefetcher[] others = new ChangelistPrefetcher[]{new ChangelistPrefetcher(), new ChangelistPrefetcher()};
+        try
+        {
+            for (ChangelistPrefetcher other : others)
+            {
+                StubFetcher blocker = newFetcher(false);
+                other.revisionSeen(null, 1, blocker);
+                other.revisionSeen(null, 2, blocker);
+                blocker.awaitStarted();
+            }
+
+            StubFetcher fetcher = newFetcher(true);
+            prefetcher.revisionSeen(null, 10, fetcher);
+            prefetcher.revisionSeen(null, 15, fetcher);
+            assertNull(prefetcher.getBuffered(11, 15));
+
+            for (StubFetcher blocker : fetchers)
+            {
+                blocker.release();
+            }
+
+            // Tasks run in order, so once a new prefetch has started the
+            // cancelled one would have run if it was going to.
+            StubFetcher next = newFetcher(true);
+            prefetcher.revisionSeen(null, 16, next);
+            next.awaitStarted();
+            assertTrue(fetcher.calls.isEmpty());
+            assertEquals("11-16", next.calls.get(0));
+            assertRevisions(11, 16, prefetcher.getBuffered(11, 16));
+        }
+        finally
+        {
+            for (ChangelistPrefetcher other : others)
+            {
+                other.cancel();
+            }
+        }
+    }
+
+    @Test
+    public void testSuperseded() throws Exception
+    {
+        StubFetcher first = newFetcher(false);
+        prefetcher.revisionSeen(null, 10, first);
+        prefetcher.revisionSeen(null, 15, first);
+        first.awaitStarted();
+
+        StubFetcher second = newFetcher(false);
+        prefetcher.revisionSeen(null, 20, second);
+        assertTrue(first.awaitInterrupted());
+        second.awaitStarted();
+        assertEquals("11-20", second.calls.get(0));
+
+        Future<List<Changelist>> result = getBufferedInBackground(11, 20);
+        assertBlocked(result);
+        second.release();
+        assertRevisions(11, 20, result.get(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testNoNewRevisions() throws Exception
+    {
+        StubFetcher fetcher = newFetcher(false);
+        prefetcher.revisionSeen(null, 10, fetcher);
+        prefetcher.revisionSeen(null, 15, fetcher);
+        fetcher.awaitStarted();
+        prefetcher.revisionSeen(null, 15, fetcher);
+        prefetcher.revisionSeen(null, 12, fetcher);
+        fetcher.release();
+
+        assertRevisions(11, 15, prefetcher.getBuffered(11, 15));
+        assertEquals(1, fetcher.calls.size());
+    }
+
+    @Test
+    public void testOlderRevisionIgnored() throws Exception
+    {
+        StubFetcher fetcher = newFetcher(false);
+        prefetcher.revisionSeen(null, 10, fetcher);
+        prefetcher.revisionSeen(null, 15, fetcher);
+        fetcher.awaitStarted();
+
+        // A slow poll reporting what was latest before the prefetch began.
+        prefetcher.revisionSeen(null, 10, fetcher);
+        assertFalse(fetcher.interrupted.await(100, TimeUnit.MILLISECONDS));
+        fetcher.release();
+        assertRevisions(11, 15, prefetcher.getBuffered(11, 15));
+
+        prefetcher.revisionSeen(null, 5, fetcher);
+        assertRevisions(11, 15, prefetcher.getBuffered(11, 15));
+        assertEquals(1, fetcher.calls.size());
+    }
+
+    @Test
+    public void testTrimmed() throws Exception
+    {
+        StubFetcher first = newFetcher(true);
+        prefetcher.revisionSeen(null, 0, first);
+        prefetcher.revisionSeen(null, 400, first);
+        first.awaitStarted();
+        assertRevisions(1, 400, prefetcher.getBuffered(1, 400));
+
+        StubFetcher second = newFetcher(true);
+        prefetcher.revisionSeen(null, 700, second);
+        second.awaitStarted();
+        assertEquals("401-700", second.calls.get(0));
+        assertRevisions(201, 700, prefetcher.getBuffered(201, 700));
+        assertNull(prefetcher.getBuffered(200, 700));
+    }
+
+    @Test
+    public void testLongGapFetchesOnlyWhatIsKept() throws Exception
+    {
+        StubFetcher fetcher = newFetcher(true);
+        prefetcher.revisionSeen(null, 10, fetcher);
+        prefetcher.revisionSeen(null, 2000, fetcher);
+        fetcher.awaitStarted();
+        assertEquals("1501-2000", fetcher.calls.get(0));
+        assertRevisions(1501, 2000, prefetcher.getBuffered(1501, 2000));
+        assertNull(prefetcher.getBuffered(11, 2000));
+    }
+
+    @Test
+    public void testLongGapCancelsPending() throws Exception
+    {
+        StubFetcher first = newFetcher(false);
+        prefetcher.revisionSeen(null, 10, first);
+        prefetcher.revisionSeen(null, 15, first);
+        first.awaitStarted();
+
+        StubFetcher second = newFetcher(true);
+        prefetcher.revisionSeen(null, 1000, second);
+        assertTrue(first.awaitInterrupted());
+        second.awaitStarted();
+        assertEquals("501-1000", second.calls.get(0));
+        assertRevisions(501, 1000, prefetcher.getBuffered(501, 1000));
+    }
+
+    @Test
+    public void testFailure() throws Exception
+    {
+        StubFetcher failing = newFetcher(true);
+        failing.fail = true;
+        prefetcher.revisionSeen(null, 10, failing);
+        prefetcher.revisionSeen(null, 15, failing);
+        failing.awaitStarted();
+        assertNull(prefetcher.getBuffered(11, 15));
+
+        // The failed range is fetched again along with the next revisions.
+        StubFetcher fetcher = newFetcher(true);
+        prefetcher.revisionSeen(null, 16, fetcher);
+        fetcher.awaitStarted();
+        assertEquals("11-16", fetcher.calls.get(0));
+        assertRevisions(11, 16, prefetcher.getBuffered(11, 16));
+    }
+
+    @Test
+    public void testCancel() throws Exception
+    {
+        StubFetcher fetcher = newFetcher(true);
+        prefetcher.revisionSeen(null, 10, fetcher);
+        prefetcher.revisionSeen(null, 15, fetcher);
+        fetcher.awaitStarted();
+        assertNotNull(prefetcher.getBuffered(11, 15));
+
+        prefetcher.cancel();
+        assertNull(prefetcher.getBuffered(11, 15));
+
+        // The next revision seen is a new baseline.
+        prefetcher.revisionSeen(null, 20, fetcher);
+        assertNull(prefetcher.getBuffered(16, 20));
+        assertEquals(1, fetcher.calls.size());
+    }
+
+    private StubFetcher newFetcher(boolean released)
+    {
+        StubFetcher fetcher = new StubFetcher();
+        if (released)
+        {
+            fetcher.release();
+        }
+
+        fetchers.add(fetcher);
+        return fetcher;
+    }
+
+    private Future<List<Changelist>> getBufferedInBackground(final long from, final long to)
+    {
+        return executor.submit(new Callable<List<Changelist>>()
+        {
+            @Override
+            public List<Changelist> call() throws Exception
+            {
+                return prefetcher.getBuffered(from, to);
+            }
+        });
+    }
+
+    private void assertBlocked(Future<?> future) throws Exception
+    {
+        try
+        {
+            future.get(100, TimeUnit.MILLISECONDS);
+            throw new AssertionError("Should be waiting for the prefetch");
+        }
+        catch (TimeoutException e)
+        {
+            // Expected.
+        }
+    }
+
+    private void assertRevisions(long from, long to, List<Changelist> changelists)
+    {
+        assertNotNull(changelists);
+        assertEquals(to - from + 1, changelists.size());
+        long revision = from;
+        for (Changelist changelist : changelists)
+        {
+            assertEquals(Long.toString(revision++), changelist.getRevision().getRevisionString());
+        }
+    }
+
+    private static class StubFetcher implements ChangelistPrefetcher.Fetcher
+    {
+        private final List<String> calls = new CopyOnWriteArrayList<String>();
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final CountDownLatch interrupted = new CountDownLatch(1);
+        private volatile boolean fail = false;
+
+        @Override
+        public List<Changelist> fetch(ExecutionContext context, long from, long to) throws ScmException
+        {
+            calls.add(from + "-" + to);
+            started.countDown();
+            try
+            {
+                released.await();
+            }
+            catch (InterruptedException e)
+            {
+                interrupted.countDown();
+                throw new ScmException("Interrupted");
+            }
+
+            if (fail)
+            {
+                throw new ScmException("Failed");
+            }
+
+            List<Changelist> result = new LinkedList<Changelist>();
+            for (long revision = from; revision <= to; revision++)
+            {
+                result.add(new Changelist(new Revision(revision), revision * 1000, "author", "comment",
+                        Collections.<FileChange>emptyList()));
+            }
+            return result;
+        }
+
+        private void awaitStarted() throws InterruptedException
+        {
+            assertTrue("Fetch not started", started.await(TIMEOUT, TimeUnit.SECONDS));
+        }
+
+        private boolean awaitInterrupted() throws InterruptedException
+        {
+            return interrupted.await(TIMEOUT, TimeUnit.SECONDS);
+        }
+
+        private void release()
+        {
+            released.countDown();
+        }
+    }
+}
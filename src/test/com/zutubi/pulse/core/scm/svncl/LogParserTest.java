@@ -0,0 +1,92 @@
+package com.zutubi.pulse.core.scm.svncl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import com.zutubi.pulse.core.scm.api.Changelist;
+import com.zutubi.pulse.core.scm.api.FileChange;
+
+/**
+ * Tests for {@link LogParser}.
+ */
+public class LogParserTest
+{
+    @Test
+    public void testParse() throws Exception
+    {
+        List<Changelist> changelists = LogParser.parse("<?xml version=\"1.0\"?>" +
+                "<log>" +
+                "<logentry revision=\"123\">" +
+                "<author>joeblogs</author>" +
+                "<date>2009-06-08T17:31:04.848536Z</date>" +
+                "<paths>" +
+                "<path action=\"M\">/trunk/edited</path>" +
+                "<path action=\"A\">/trunk/added</path>" +
+                "</paths>" +
+                "<msg>Commit message here</msg>" +
+                "</logentry>" +
+                "</log>");
+        assertEquals(1, changelists.size());
+
+        Changelist changelist = changelists.get(0);
+        assertEquals("123", changelist.getRevision().getRevisionString());
+        assertEquals("joeblogs", changelist.getAuthor());
+        assertEquals("Commit message here", changelist.getComment());
+        assertEquals(utc(2009, 6, 8, 17, 31, 4, 848), changelist.getTime());
+
+        List<FileChange> changes = changelist.getChanges();
+        assertEquals(2, changes.size());
+        assertEquals("/trunk/edited", changes.get(0).getPath());
+        assertEquals(FileChange.Action.EDIT, changes.get(0).getAction());
+        assertEquals("/trunk/added", changes.get(1).getPath());
+        assertEquals(FileChange.Action.ADD, changes.get(1).getAction());
+    }
+
+    @Test
+    public void testMicrosecondsAreTruncated() throws Exception
+    {
+        assertEquals(utc(2009, 6, 8, 17, 31, 4, 999), parseTime("2009-06-08T17:31:04.999999Z"));
+        assertEquals(utc(2009, 6, 8, 17, 31, 4, 0), parseTime("2009-06-08T17:31:04.000999Z"));
+    }
+
+    @Test
+    public void testTimesWithinASecondAreOrdered() throws Exception
+    {
+        // Read as milliseconds, 999999 would come 16 minutes after 000001.
+        assertTrue(parseTime("2009-06-08T17:31:04.999999Z") < parseTime("2009-06-08T17:31:05.000001Z"));
+    }
+
+    @Test
+    public void testShortFraction() throws Exception
+    {
+        assertEquals(utc(2009, 6, 8, 17, 31, 4, 500), parseTime("2009-06-08T17:31:04.5Z"));
+    }
+
+    @Test
+    public void testNoFraction() throws Exception
+    {
+        assertEquals(utc(2009, 6, 8, 17, 31, 4, 0), parseTime("2009-06-08T17:31:04Z"));
+    }
+
+    private long parseTime(String date) throws Exception
+    {
+        List<Changelist> changelists = LogParser.parse("<log><logentry revision=\"1\"><date>" + date +
+                "</date><paths/></logentry></log>");
+        return changelists.get(0).getTime();
+    }
+
+    private long utc(int year, int month, int day, int hour, int minute, int second, int millis)
+    {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        calendar.set(Calendar.MILLISECOND, millis);
+        return calendar.getTimeInMillis();
+    }
+}
@@ -0,0 +1,145 @@
+package com.zutubi.pulse.core.scm.svncl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.zutubi.pulse.core.scm.api.Changelist;
+import com.zutubi.pulse.core.scm.api.FileChange;
+import com.zutubi.pulse.core.scm.api.Revision;
+
+/**
+ * Tests for {@link RevisionTimeIndex}.
+ */
+public class RevisionTimeIndexTest
+{
+    @Test
+    public void testEmpty()
+    {
+        RevisionTimeIndex index = new RevisionTimeIndex();
+        assertFalse(index.isHistoryComplete());
+        assertEquals(RevisionTimeIndex.UNKNOWN, index.getRevisionAt(1000));
+    }
+
+    @Test
+    public void testLookup()
+    {
+        RevisionTimeIndex index = new RevisionTimeIndex();
+        index.addChangelists(1, 10, changelists(2, 200, 5, 500, 9, 900));
+        index.latestSeen(10, 1000);
+        assertEquals(2, index.getRevisionAt(200));
+        assertEquals(2, index.getRevisionAt(499));
+        assertEquals(5, index.getRevisionAt(500));
+        assertEquals(9, index.getRevisionAt(1000));
+    }
+
+    @Test
+    public void testAfterLatestSeen()
+    {
+        RevisionTimeIndex index = new RevisionTimeIndex();
+        index.addChangelists(1, 10, changelists(2, 200, 9, 900));
+        index.latestSeen(10, 1000);
+        assertEquals(RevisionTimeIndex.UNKNOWN, index.getRevisionAt(1001));
+    }
+
+    @Test
+    public void testHistoryFromFirstRevision()
+    {
+        RevisionTimeIndex index = new RevisionTimeIndex();
+        index.addChangelists(1, 10, changelists(2, 200, 9, 900));
+        assertTrue(index.isHistoryComplete());
+        assertEquals(RevisionTimeIndex.NONE, index.getRevisionAt(100));
+    }
+
+    @Test
+    public void testHistoryStartUnknown()
+    {
+        RevisionTimeIndex index = new RevisionTimeIndex();
+        index.addChangelists(5, 10, changelists(6, 600, 9, 900));
+        assertFalse(index.isHistoryComplete());
+        assertEquals(RevisionTimeIndex.UNKNOWN, index.getRevisionAt(100));
+    }
+
+    @Test
+    public void testHistoryStartsAt()
+    {
+        RevisionTimeIndex index = new RevisionTimeIndex();
+        index.addChangelists(5, 10, changelists(6, 600, 9, 900));
+        index.historyStartsAt(5);
+        assertTrue(index.isHistoryComplete());
+        assertEquals(RevisionTimeIndex.NONE, index.getRevisionAt(100));
+    }
+
+    @Test
+    public void testHistoryStartsAtStaleRevision()
+    {
+        RevisionTimeIndex index = new RevisionTimeIndex();
+        index.addChangelists(5, 10, changelists(6, 600, 9, 900));
+        index.historyStartsAt(3);
+        assertFalse(index.isHistoryComplete());
+    }
+
+    @Test
+    public void testHistoryStartKeptWhenExtendedForwards()
+    {
+        RevisionTimeIndex index = new RevisionTimeIndex();
+        index.addChangelists(5, 10, changelists(6, 600, 9, 900));
+        index.historyStartsAt(5);
+        index.addChangelists(11, 20, changelists(15, 1500));
+        assertTrue(index.isHistoryComplete());
+        assertEquals(5, index.getCoveredFrom());
+        assertEquals(20, index.getCoveredTo());
+    }
+
+    @Test
+    public void testHistoryStartClearedOnReset()
+    {
+        RevisionTimeIndex index = new RevisionTimeIndex();
+        index.addChangelists(5, 10, changelists(6, 600, 9, 900));
+        index.historyStartsAt(5);
+        index.addChangelists(20, 30, changelists(25, 2500));
+        assertFalse(index.isHistoryComplete());
+    }
+
+    @Test
+    public void testOlderLatestSeenIgnored()
+    {
+        RevisionTimeIndex index = new RevisionTimeIndex();
+        index.addChangelists(5, 10, changelists(6, 600, 9, 900));
+        index.historyStartsAt(5);
+        index.latestSeen(10, 1000);
+        index.latestSeen(8, 1100);
+        assertEquals(10, index.getLatestSeen());
+        assertTrue(index.isHistoryComplete());
+        assertEquals(6, index.getRevisionAt(700));
+        assertEquals(RevisionTimeIndex.UNKNOWN, index.getRevisionAt(1100));
+    }
+
+    @Test
+    public void testSameLatestSeenLater()
+    {
+        RevisionTimeIndex index = new RevisionTimeIndex();
+        index.addChangelists(1, 10, changelists(9, 900));
+        index.latestSeen(10, 1100);
+        index.latestSeen(10, 1000);
+        assertEquals(9, index.getRevisionAt(1100));
+        assertEquals(RevisionTimeIndex.UNKNOWN, index.getRevisionAt(1101));
+    }
+
+    private List<Changelist> changelists(long... revisionsAndTimes)
+    {
+        Changelist[] result = new Changelist[revisionsAndTimes.length / 2];
+        for (int i = 0; i < result.length; i++)
+        {
+            result[i] = new Changelist(new Revision(revisionsAndTimes[i * 2]), revisionsAndTimes[i * 2 + 1], "author",
+                    "comment", Collections.<FileChange>emptyList());
+        }
+        return Arrays.asList(result);
+    }
+}
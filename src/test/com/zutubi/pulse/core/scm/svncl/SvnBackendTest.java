@@ -0,0 +1,411 @@
+package com.zutubi.pulse.core.scm.svncl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.tmatesoft.svn.core.SVNCommitInfo;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNRevisionProperty;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.internal.util.SVNDate;
+import org.tmatesoft.svn.core.internal.io.fs.FSRepositoryFactory;
+import org.tmatesoft.svn.core.io.ISVNEditor;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+import org.tmatesoft.svn.core.io.diff.SVNDeltaGenerator;
+
+import com.zutubi.pulse.core.PulseExecutionContext;
+import com.zutubi.pulse.core.engine.api.ExecutionContext;
+import com.zutubi.pulse.core.scm.api.Changelist;
+import com.zutubi.pulse.core.scm.api.FileChange;
+import com.zutubi.pulse.core.scm.api.Revision;
+
+/**
+ * Tests that every {@link SvnBackend} behaves the same way, against a local
+ * file:// repository.  The command-line backend is skipped if svn is not
+ * on the path.
+ */
+@RunWith(Parameterized.class)
+public class SvnBackendTest
+{
+    private static final String CONTENT_A_1 = "one\ntwo\n";
+    private static final String CONTENT_A_2 = "one\ntwo\nthree\n";
+    private static final String CONTENT_B = "no trailing newline";
+    private static final String CONTENT_C = "crlf\r\nlines\r\n";
+
+    private final SvnBackendType type;
+    private File tmpDir;
+    private SVNRepository repository;
+    private SvnBackend backend;
+    private ExecutionContext context;
+
+    @Parameters(name = "{0}")
+    public static List<Object[]> getBackendTypes()
+    {
+        List<Object[]> result = new LinkedList<Object[]>();
+        for (SvnBackendType type : SvnBackendType.values())
+        {
+            result.add(new Object[]{type});
+        }
+        return result;
+    }
+
+    public SvnBackendTest(SvnBackendType type)
+    {
+        this.type = type;
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        if (type == SvnBackendType.COMMAND_LINE)
+        {
+            Assume.assumeTrue(isSvnAvailable());
+        }
+
+        tmpDir = File.createTempFile(getClass().getSimpleName(), ".tmp");
+        assertTrue(tmpDir.delete());
+        assertTrue(tmpDir.mkdirs());
+
+        FSRepositoryFactory.setup();
+        SVNURL repositoryUrl = SVNRepositoryFactory.createLocalRepository(new File(tmpDir, "repo"), true, false);
+        repository = SVNRepositoryFactory.create(repositoryUrl);
+        createHistory();
+
+        SvnConfiguration config = new SvnConfiguration(repositoryUrl.appendPath("trunk", false).toString(), "", "", 0);
+        config.setBackend(type);
+        backend = type.createBackend(config);
+        context = new PulseExecutionContext();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (backend != null)
+        {
+            backend.destroy();
+        }
+
+        if (repository != null)
+        {
+            repository.closeSession();
+        }
+
+        if (tmpDir != null)
+        {
+            removeDirectory(tmpDir);
+        }
+    }
+
+    /**
+     * r1: add /trunk and /trunk/a.txt
+     * r2: edit /trunk/a.txt, add /trunk/b.txt and /trunk/c.txt
+     * r3: delete /trunk/b.txt
+     * r4: add /other, outside of the configured URL
+     */
+    private void createHistory() throws SVNException
+    {
+        ISVNEditor editor = repository.getCommitEditor("add trunk", null);
+        editor.openRoot(-1);
+        editor.addDir("trunk", null, -1);
+        addFile(editor, "trunk/a.txt", CONTENT_A_1);
+        editor.closeDir();
+        editor.closeDir();
+        editor.closeEdit();
+
+        editor = repository.getCommitEditor("edit and add", null);
+        editor.openRoot(-1);
+        editor.openDir("trunk", -1);
+        editor.openFile("trunk/a.txt", -1);
+        sendContent(editor, "trunk/a.txt", CONTENT_A_2);
+        addFile(editor, "trunk/b.txt", CONTENT_B);
+        addFile(editor, "trunk/c.txt", CONTENT_C);
+        editor.closeDir();
+        editor.closeDir();
+        editor.closeEdit();
+
+        editor = repository.getCommitEditor("delete", null);
+        editor.openRoot(-1);
+        editor.openDir("trunk", -1);
+        editor.deleteEntry("trunk/b.txt", -1);
+        editor.closeDir();
+        editor.closeDir();
+        editor.closeEdit();
+
+        editor = repository.getCommitEditor("elsewhere", null);
+        editor.openRoot(-1);
+        editor.addDir("other", null, -1);
+        editor.closeDir();
+        editor.closeDir();
+        SVNCommitInfo info = editor.closeEdit();
+        assertEquals(4, info.getNewRevision());
+    }
+
+    private void addFile(ISVNEditor editor, String path, String content) throws SVNException
+    {
+        editor.addFile(path, null, -1);
+        sendContent(editor, path, content);
+    }
+
+    private void sendContent(ISVNEditor editor, String path, String content) throws SVNException
+    {
+        editor.applyTextDelta(path, null);
+        String checksum = new SVNDeltaGenerator().sendDelta(path, new ByteArrayInputStream(content.getBytes()), editor, true);
+        editor.closeFile(path, checksum);
+    }
+
+    @Test
+    public void testGetUuid() throws Exception
+    {
+        assertEquals(repository.getRepositoryUUID(true), backend.getUuid(context));
+    }
+
+    @Test
+    public void testGetLatestRevision() throws Exception
+    {
+        // r4 is outside the configured URL.
+        assertEquals(3, backend.getLatestRevision(context));
+    }
+
+    @Test
+    public void testCheckout() throws Exception
+    {
+        File wc = new File(tmpDir, "wc");
+        backend.checkout(context, null, new Revision(1), wc);
+        assertEquals(CONTENT_A_1, readFile(new File(wc, "a.txt")));
+        assertFalse(new File(wc, "b.txt").exists());
+    }
+
+    @Test
+    public void testUpdate() throws Exception
+    {
+        File wc = new File(tmpDir, "wc");
+        backend.checkout(context, null, new Revision(1), wc);
+
+        backend.update(context, null, new Revision(2), wc);
+        assertEquals(CONTENT_A_2, readFile(new File(wc, "a.txt")));
+        assertEquals(CONTENT_B, readFile(new File(wc, "b.txt")));
+
+        backend.update(context, null, new Revision(3), wc);
+        assertFalse(new File(wc, "b.txt").exists());
+    }
+
+    @Test
+    public void testRetrieve() throws Exception
+    {
+        assertEquals(CONTENT_A_1, readStream(backend.retrieve(context, "a.txt", new Revision(1))));
+        assertEquals(CONTENT_A_2, readStream(backend.retrieve(context, "a.txt", new Revision(2))));
+    }
+
+    @Test
+    public void testRetrieveLatest() throws Exception
+    {
+        assertEquals(CONTENT_A_2, readStream(backend.retrieve(context, "a.txt", null)));
+    }
+
+    @Test
+    public void testRetrieveNoTrailingNewline() throws Exception
+    {
+        assertEquals(CONTENT_B, readStream(backend.retrieve(context, "b.txt", new Revision(2))));
+    }
+
+    @Test
+    public void testRetrieveIsByteForByte() throws Exception
+    {
+        assertArrayEquals(CONTENT_C.getBytes(), readBytes(backend.retrieve(context, "c.txt", new Revision(2))));
+    }
+
+    @Test
+    public void testGetChangesForwards() throws Exception
+    {
+        List<Changelist> changelists = backend.getChanges(context, 1, 3, true);
+        assertEquals("1,2,3", getRevisions(changelists));
+        assertHistory(changelists.get(0), changelists.get(1), changelists.get(2));
+    }
+
+    @Test
+    public void testGetChangesBackwards() throws Exception
+    {
+        List<Changelist> changelists = backend.getChanges(context, 3, 1, true);
+        assertEquals("3,2,1", getRevisions(changelists));
+        assertHistory(changelists.get(2), changelists.get(1), changelists.get(0));
+    }
+
+    @Test
+    public void testGetChangesSubRange() throws Exception
+    {
+        assertEquals("2,3", getRevisions(backend.getChanges(context, 2, 3, true)));
+        assertEquals("3,2", getRevisions(backend.getChanges(context, 3, 2, true)));
+    }
+
+    @Test
+    public void testGetChangesWithoutFiles() throws Exception
+    {
+        List<Changelist> changelists = backend.getChanges(context, 3, 1, false);
+        assertEquals("3,2,1", getRevisions(changelists));
+        assertEquals("delete", changelists.get(0).getComment());
+        for (Changelist changelist : changelists)
+        {
+            assertEquals(0, changelist.getChanges().size());
+        }
+    }
+
+    @Test
+    public void testGetChangesBeforePathExisted() throws Exception
+    {
+        SvnConfiguration config = new SvnConfiguration(repository.getLocation().appendPath("other", false).toString(), "", "", 0);
+        SvnBackend otherBackend = type.createBackend(config);
+        try
+        {
+            otherBackend.getChanges(context, 3, 1, false);
+            fail("Path should not be found");
+        }
+        catch (SvnPathNotFoundException e)
+        {
+            // Expected.
+        }
+        finally
+        {
+            otherBackend.destroy();
+        }
+    }
+
+    @Test
+    public void testGetChangesTimes() throws Exception
+    {
+        for (Changelist changelist : backend.getChanges(context, 1, 3, true))
+        {
+            long revision = Long.parseLong(changelist.getRevision().getRevisionString());
+            String date = repository.getRevisionPropertyValue(revision, SVNRevisionProperty.DATE).getString();
+            assertEquals(SVNDate.parseDate(date).getTime(), changelist.getTime());
+        }
+    }
+
+    private void assertHistory(Changelist r1, Changelist r2, Changelist r3)
+    {
+        assertEquals("add trunk", r1.getComment());
+        assertEquals("/trunk=ADD,/trunk/a.txt=ADD", getChanges(r1));
+        assertEquals("edit and add", r2.getComment());
+        assertEquals("/trunk/a.txt=EDIT,/trunk/b.txt=ADD,/trunk/c.txt=ADD", getChanges(r2));
+        assertEquals("delete", r3.getComment());
+        assertEquals("/trunk/b.txt=DELETE", getChanges(r3));
+        assertTrue(r1.getTime() <= r2.getTime());
+        assertTrue(r2.getTime() <= r3.getTime());
+    }
+
+    private String getRevisions(List<Changelist> changelists)
+    {
+        StringBuilder result = new StringBuilder();
+        for (Changelist changelist : changelists)
+        {
+            if (result.length() > 0)
+            {
+                result.append(',');
+            }
+            result.append(changelist.getRevision().getRevisionString());
+        }
+        return result.toString();
+    }
+
+    private String getChanges(Changelist changelist)
+    {
+        // Backends need not agree on the order of changes.
+        Map<String, FileChange.Action> sorted = new TreeMap<String, FileChange.Action>();
+        for (FileChange change : changelist.getChanges())
+        {
+            sorted.put(change.getPath(), change.getAction());
+        }
+
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, FileChange.Action> entry : sorted.entrySet())
+        {
+            if (result.length() > 0)
+            {
+                result.append(',');
+            }
+            result.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return result.toString();
+    }
+
+    private static boolean isSvnAvailable()
+    {
+        try
+        {
+            Process process = new ProcessBuilder(SvnConstants.COMMAND_SVN, "--version", "--quiet").redirectErrorStream(true).start();
+            readBytes(process.getInputStream());
+            return process.waitFor() == 0;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+        catch (InterruptedException e)
+        {
+            return false;
+        }
+    }
+
+    private static String readFile(File file) throws IOException
+    {
+        return readStream(new FileInputStream(file));
+    }
+
+    private static String readStream(InputStream input) throws IOException
+    {
+        return new String(readBytes(input));
+    }
+
+    private static byte[] readBytes(InputStream input) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try
+        {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = input.read(buffer)) > 0)
+            {
+                output.write(buffer, 0, n);
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+        return output.toByteArray();
+    }
+
+    private static void removeDirectory(File dir)
+    {
+        File[] children = dir.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                removeDirectory(child);
+            }
+        }
+        dir.delete();
+    }
+}
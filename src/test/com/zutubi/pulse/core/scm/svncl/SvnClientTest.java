@@ -0,0 +1,301 @@
+package com.zutubi.pulse.core.scm.svncl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNPropertyValue;
+import org.tmatesoft.svn.core.SVNRevisionProperty;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.internal.io.fs.FSRepositoryFactory;
+import org.tmatesoft.svn.core.internal.util.SVNDate;
+import org.tmatesoft.svn.core.io.ISVNEditor;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+
+import com.zutubi.pulse.core.PulseExecutionContext;
+import com.zutubi.pulse.core.scm.ScmContextImpl;
+import com.zutubi.pulse.core.scm.api.ScmContext;
+import com.zutubi.pulse.core.scm.api.ScmException;
+
+/**
+ * Tests for revision parsing in {@link SvnClient}, using the SVNKit backend
+ * against a local file:// repository with fixed commit dates.
+ */
+public class SvnClientTest
+{
+    private File tmpDir;
+    private File repositoryDir;
+    private SVNURL repositoryUrl;
+    private SvnClient client;
+    private ScmContext context;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        tmpDir = File.createTempFile(getClass().getSimpleName(), ".tmp");
+        assertTrue(tmpDir.delete());
+        assertTrue(tmpDir.mkdirs());
+
+        FSRepositoryFactory.setup();
+        repositoryDir = new File(tmpDir, "repo");
+        repositoryUrl = SVNRepositoryFactory.createLocalRepository(repositoryDir, true, false);
+        createHistory();
+
+        context = new ScmContextImpl(null, new PulseExecutionContext());
+        client = createClient("trunk");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (client != null)
+        {
+            client.destroy(context, null);
+        }
+
+        if (tmpDir != null)
+        {
+            removeDirectory(tmpDir);
+        }
+    }
+
+    /**
+     * r1 (2009-01-01 12:00 UTC): add /trunk
+     * r2 (2009-02-01 12:00 UTC): add /trunk/a
+     * r3 (2009-03-01 12:00 UTC): add /trunk/b
+     * r4 (2009-04-01 12:00 UTC): add /other
+     */
+    private void createHistory() throws SVNException
+    {
+        SVNRepository repository = SVNRepositoryFactory.create(repositoryUrl);
+        try
+        {
+            commitDir(repository, "trunk", null, "2009-01-01T12:00:00.000000Z");
+            commitDir(repository, "trunk/a", "trunk", "2009-02-01T12:00:00.000000Z");
+            commitDir(repository, "trunk/b", "trunk", "2009-03-01T12:00:00.000000Z");
+            commitDir(repository, "other", null, "2009-04-01T12:00:00.000000Z");
+        }
+        finally
+        {
+            repository.closeSession();
+        }
+    }
+
+    private void commitDir(SVNRepository repository, String path, String parent, String date) throws SVNException
+    {
+        ISVNEditor editor = repository.getCommitEditor("add " + path, null);
+        editor.openRoot(-1);
+        if (parent != null)
+        {
+            editor.openDir(parent, -1);
+        }
+        editor.addDir(path, null, -1);
+        editor.closeDir();
+        if (parent != null)
+        {
+            editor.closeDir();
+        }
+        editor.closeDir();
+        long revision = editor.closeEdit().getNewRevision();
+        repository.setRevisionPropertyValue(revision, SVNRevisionProperty.DATE,
+                SVNPropertyValue.create(SVNDate.parseDate(date).format()));
+    }
+
+    private SvnClient createClient(String path) throws SVNException
+    {
+        SvnConfiguration config = new SvnConfiguration(repositoryUrl.appendPath(path, false).toString(), "", "", 0);
+        config.setBackend(SvnBackendType.SVNKIT);
+        return new SvnClient(config);
+    }
+
+    @Test
+    public void testHead() throws Exception
+    {
+        // r4 is outside the configured URL.
+        assertRevision("3", "HEAD");
+        assertRevision("3", "head");
+        assertRevision("3", " HEAD ");
+    }
+
+    @Test
+    public void testCommitted() throws Exception
+    {
+        assertRevision("3", "COMMITTED");
+    }
+
+    @Test
+    public void testPrev() throws Exception
+    {
+        assertRevision("2", "PREV");
+    }
+
+    @Test
+    public void testNumber() throws Exception
+    {
+        assertRevision("2", "2");
+    }
+
+    @Test
+    public void testNumberAfterLatest() throws Exception
+    {
+        assertInvalid("10", "does not exist");
+    }
+
+    @Test
+    public void testKnownNumberNeedsNoServer() throws Exception
+    {
+        assertRevision("3", "HEAD");
+        removeDirectory(repositoryDir);
+        assertRevision("3", "3");
+        assertRevision("1", "1");
+
+        // Whereas the head has to be checked.
+        try
+        {
+            client.parseRevision(context, "HEAD");
+            fail("Server should be unavailable");
+        }
+        catch (ScmException e)
+        {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testBracedDate() throws Exception
+    {
+        assertRevision("2", "{2009-02-15}");
+    }
+
+    @Test
+    public void testUnbracedDate() throws Exception
+    {
+        assertRevision("2", "2009-02-15");
+    }
+
+    @Test
+    public void testDateWithTime() throws Exception
+    {
+        assertRevision("2", "{2009-02-15 10:30}");
+        assertRevision("2", "2009-02-15 10:30:15");
+        assertRevision("2", "2009-02-15T10:30");
+    }
+
+    @Test
+    public void testUtcDate() throws Exception
+    {
+        assertRevision("3", "{2009-03-01T12:00:00Z}");
+        assertRevision("2", "{2009-03-01T11:59:59Z}");
+        assertRevision("2", "2009-03-01T11:59:59.999Z");
+        assertRevision("1", "2009-01-01T12:00Z");
+    }
+
+    @Test
+    public void testDateAfterLatest() throws Exception
+    {
+        assertRevision("3", "2030-01-01");
+    }
+
+    @Test
+    public void testDateBeforeHistory() throws Exception
+    {
+        assertInvalid("{2008-12-01}", "no changes at or before that date");
+    }
+
+    @Test
+    public void testInvalidDates() throws Exception
+    {
+        assertInvalid("2009-02-15x", "must be a valid revision number");
+        assertInvalid("{2009-02-15} junk", "must be a valid revision number");
+        assertInvalid("{2009-02-15", "must be a valid revision number");
+        assertInvalid("2009-02-30", "must be a valid revision number");
+        assertInvalid("yesterday", "must be a valid revision number");
+    }
+
+    @Test
+    public void testDatesResolvedFromIndex() throws Exception
+    {
+        assertRevision("2", "2009-02-15");
+        removeDirectory(repositoryDir);
+        assertRevision("1", "2009-01-15");
+        assertRevision("3", "2009-03-15");
+        assertInvalid("2008-12-01", "no changes at or before that date");
+    }
+
+    @Test
+    public void testDateBeforeUrlCreated() throws Exception
+    {
+        SvnClient otherClient = createClient("other");
+        try
+        {
+            assertEquals("4", otherClient.parseRevision(context, "2009-04-15").getRevisionString());
+            try
+            {
+                otherClient.parseRevision(context, "2009-03-15");
+                fail("Date should be before any changes");
+            }
+            catch (ScmException e)
+            {
+                assertTrue(e.getMessage().contains("no changes at or before that date"));
+            }
+        }
+        finally
+        {
+            otherClient.destroy(context, null);
+        }
+    }
+
+    @Test
+    public void testNoBackendConfigured() throws Exception
+    {
+        SvnConfiguration config = new SvnConfiguration(repositoryUrl.appendPath("trunk", false).toString(), "", "", 0);
+        config.setBackend(null);
+        SvnClient defaultClient = new SvnClient(config);
+        try
+        {
+            assertEquals("@" + config.getUrl(), defaultClient.getLocation(context));
+        }
+        finally
+        {
+            defaultClient.destroy(context, null);
+        }
+    }
+
+    private void assertRevision(String expected, String revision) throws ScmException
+    {
+        assertEquals(expected, client.parseRevision(context, revision).getRevisionString());
+    }
+
+    private void assertInvalid(String revision, String message)
+    {
+        try
+        {
+            client.parseRevision(context, revision);
+            fail("Revision '" + revision + "' should be invalid");
+        }
+        catch (ScmException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    private static void removeDirectory(File dir)
+    {
+        File[] children = dir.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                removeDirectory(child);
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,396 @@
+package com.zutubi.pulse.core.scm.svncl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tmatesoft.sqljet.core.SqlJetTransactionMode;
+import org.tmatesoft.sqljet.core.table.ISqlJetCursor;
+import org.tmatesoft.sqljet.core.table.SqlJetDb;
+import org.tmatesoft.svn.core.SVNDepth;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNPropertyValue;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.internal.io.fs.FSRepositoryFactory;
+import org.tmatesoft.svn.core.io.ISVNEditor;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+import org.tmatesoft.svn.core.io.diff.SVNDeltaGenerator;
+import org.tmatesoft.svn.core.wc.SVNClientManager;
+import org.tmatesoft.svn.core.wc.SVNRevision;
+
+/**
+ * Tests for {@link WorkingCopy}, using working copies checked out by
+ * SVNKit from a local file:// repository.
+ */
+public class WorkingCopyTest
+{
+    private File tmpDir;
+    private SVNURL trunkUrl;
+    private SVNClientManager clientManager;
+    private File wc;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        tmpDir = File.createTempFile(getClass().getSimpleName(), ".tmp");
+        assertTrue(tmpDir.delete());
+        assertTrue(tmpDir.mkdirs());
+
+        FSRepositoryFactory.setup();
+        SVNURL repositoryUrl = SVNRepositoryFactory.createLocalRepository(new File(tmpDir, "repo"), true, false);
+        SVNRepository repository = SVNRepositoryFactory.create(repositoryUrl);
+        try
+        {
+            ISVNEditor editor = repository.getCommitEditor("add trunk", null);
+            editor.openRoot(-1);
+            editor.addDir("trunk", null, -1);
+            addFile(editor, "trunk/a.txt", "a\n");
+            editor.addDir("trunk/dir", null, -1);
+            addFile(editor, "trunk/dir/b.txt", "b\n");
+            editor.closeDir();
+            editor.closeDir();
+            editor.closeDir();
+            editor.closeEdit();
+
+            editor = repository.getCommitEditor("add c", null);
+            editor.openRoot(-1);
+            editor.openDir("trunk", -1);
+            addFile(editor, "trunk/c.txt", "c\n");
+            editor.closeDir();
+            editor.closeDir();
+            editor.closeEdit();
+        }
+        finally
+        {
+            repository.closeSession();
+        }
+
+        trunkUrl = repositoryUrl.appendPath("trunk", false);
+        clientManager = SVNClientManager.newInstance();
+        wc = new File(tmpDir, "wc");
+        clientManager.getUpdateClient().doCheckout(trunkUrl, wc, SVNRevision.HEAD, SVNRevision.HEAD, SVNDepth.INFINITY, false);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (clientManager != null)
+        {
+            clientManager.dispose();
+        }
+
+        if (tmpDir != null)
+        {
+            removeDirectory(tmpDir);
+        }
+    }
+
+    private void addFile(ISVNEditor editor, String path, String content) throws SVNException
+    {
+        editor.addFile(path, null, -1);
+        editor.applyTextDelta(path, null);
+        String checksum = new SVNDeltaGenerator().sendDelta(path, new ByteArrayInputStream(content.getBytes()), editor, true);
+        editor.closeFile(path, checksum);
+    }
+
+    @Test
+    public void testNotAWorkingCopy() throws Exception
+    {
+        assertNull(WorkingCopy.read(tmpDir));
+    }
+
+    @Test
+    public void testRead() throws Exception
+    {
+        WorkingCopy workingCopy = WorkingCopy.read(wc);
+        assertNotNull(workingCopy);
+        assertEquals(trunkUrl, workingCopy.getUrl());
+        assertEquals(2, workingCopy.getRevision());
+    }
+
+    @Test
+    public void testReadEscapedUrl() throws Exception
+    {
+        SVNURL repositoryUrl = SVNRepositoryFactory.createLocalRepository(new File(tmpDir, "my repo"), true, false);
+        SVNRepository repository = SVNRepositoryFactory.create(repositoryUrl);
+        try
+        {
+            ISVNEditor editor = repository.getCommitEditor("add dir", null);
+            editor.openRoot(-1);
+            editor.addDir("my dir", null, -1);
+            addFile(editor, "my dir/a%b.txt", "a\n");
+            editor.closeDir();
+            editor.closeDir();
+            editor.closeEdit();
+        }
+        finally
+        {
+            repository.closeSession();
+        }
+
+        SVNURL url = repositoryUrl.appendPath("my dir", false);
+        File escapedWc = new File(tmpDir, "escaped");
+        clientManager.getUpdateClient().doCheckout(url, escapedWc, SVNRevision.HEAD, SVNRevision.HEAD, SVNDepth.INFINITY, false);
+
+        WorkingCopy workingCopy = WorkingCopy.read(escapedWc);
+        assertTrue(url.toString().endsWith("/my%20repo/my%20dir"));
+        assertEquals(url, workingCopy.getUrl());
+        assertEquals(SVNURL.parseURIEncoded(url.toString() + "/"), workingCopy.getUrl());
+        assertTrue(workingCopy.isUnmodified());
+    }
+
+    @Test
+    public void testReadOlderRevision() throws Exception
+    {
+        clientManager.getUpdateClient().doUpdate(wc, SVNRevision.create(1), SVNDepth.INFINITY, false, false);
+        assertEquals(1, WorkingCopy.read(wc).getRevision());
+    }
+
+    @Test
+    public void testUnmodified() throws Exception
+    {
+        assertTrue(WorkingCopy.read(wc).isUnmodified());
+    }
+
+    @Test
+    public void testEditedFile() throws Exception
+    {
+        writeFile(new File(wc, "dir/b.txt"), "edited\n");
+        assertFalse(WorkingCopy.read(wc).isUnmodified());
+    }
+
+    @Test
+    public void testTouchedFile() throws Exception
+    {
+        File file = new File(wc, "a.txt");
+        assertTrue(file.setLastModified(file.lastModified() - 10000));
+        assertFalse(WorkingCopy.read(wc).isUnmodified());
+    }
+
+    @Test
+    public void testMissingFile() throws Exception
+    {
+        assertTrue(new File(wc, "a.txt").delete());
+        assertFalse(WorkingCopy.read(wc).isUnmodified());
+    }
+
+    @Test
+    public void testMissingDirectory() throws Exception
+    {
+        removeDirectory(new File(wc, "dir"));
+        assertFalse(WorkingCopy.read(wc).isUnmodified());
+    }
+
+    @Test
+    public void testMixedRevisions() throws Exception
+    {
+        clientManager.getUpdateClient().doUpdate(new File(wc, "a.txt"), SVNRevision.create(1), SVNDepth.INFINITY, false, false);
+        WorkingCopy workingCopy = WorkingCopy.read(wc);
+        assertEquals(2, workingCopy.getRevision());
+        assertFalse(workingCopy.isUnmodified());
+    }
+
+    @Test
+    public void testPropertyChange() throws Exception
+    {
+        clientManager.getWCClient().doSetProperty(new File(wc, "a.txt"), "test:prop", SVNPropertyValue.create("value"),
+                false, SVNDepth.EMPTY, null, null);
+        assertFalse(WorkingCopy.read(wc).isUnmodified());
+    }
+
+    @Test
+    public void testScheduledAdd() throws Exception
+    {
+        File file = new File(wc, "new.txt");
+        writeFile(file, "new\n");
+        clientManager.getWCClient().doAdd(file, false, false, false, SVNDepth.EMPTY, false, false);
+        assertFalse(WorkingCopy.read(wc).isUnmodified());
+    }
+
+    @Test
+    public void testLargeWorkingCopy() throws Exception
+    {
+        // Enough nodes to spread the tables over interior pages, and
+        // properties large enough to need overflow pages.
+        SVNRepository repository = SVNRepositoryFactory.create(trunkUrl);
+        try
+        {
+            ISVNEditor editor = repository.getCommitEditor("add lots", null);
+            editor.openRoot(-1);
+            StringBuilder longValue = new StringBuilder();
+            for (int i = 0; i < 10000; i++)
+            {
+                longValue.append('x');
+            }
+            for (int i = 0; i < 200; i++)
+            {
+                String path = "file" + i + ".txt";
+                addFile(editor, path, "content " + i + "\n");
+                if (i % 10 == 0)
+                {
+                    editor.openFile(path, -1);
+                    editor.changeFileProperty(path, "test:long", SVNPropertyValue.create(longValue.toString()));
+                    editor.closeFile(path, null);
+                }
+            }
+            editor.closeDir();
+            editor.closeEdit();
+        }
+        finally
+        {
+            repository.closeSession();
+        }
+
+        clientManager.getUpdateClient().doUpdate(wc, SVNRevision.HEAD, SVNDepth.INFINITY, false, false);
+        WorkingCopy workingCopy = WorkingCopy.read(wc);
+        assertEquals(3, workingCopy.getRevision());
+        assertTrue(workingCopy.isUnmodified());
+
+        writeFile(new File(wc, "file199.txt"), "edited\n");
+        assertFalse(WorkingCopy.read(wc).isUnmodified());
+    }
+
+    @Test
+    public void testTruncatedJournal() throws Exception
+    {
+        // Left behind in journal_mode=TRUNCATE.
+        assertTrue(getJournalFile().createNewFile());
+        WorkingCopy workingCopy = WorkingCopy.read(wc);
+        assertEquals(2, workingCopy.getRevision());
+        assertTrue(workingCopy.isUnmodified());
+    }
+
+    @Test
+    public void testPersistedJournal() throws Exception
+    {
+        // Left behind in journal_mode=PERSIST: the header is zeroed, which
+        // marks the journal as no longer live.
+        writeFile(getJournalFile(), new String(new char[512]));
+        WorkingCopy workingCopy = WorkingCopy.read(wc);
+        assertEquals(2, workingCopy.getRevision());
+        assertTrue(workingCopy.isUnmodified());
+    }
+
+    @Test
+    public void testHotJournal() throws Exception
+    {
+        // Simulate svn crashing part way through a transaction: snapshot the
+        // database and its journal while a write is in progress.
+        File dbFile = getDbFile();
+        File snapshot = new File(tmpDir, "snapshot.db");
+        File snapshotJournal = new File(tmpDir, "snapshot.db-journal");
+        SqlJetDb db = SqlJetDb.open(dbFile, true);
+        try
+        {
+            db.beginTransaction(SqlJetTransactionMode.WRITE);
+            ISqlJetCursor cursor = db.getTable("NODES").open();
+            try
+            {
+                while (!cursor.eof())
+                {
+                    cursor.updateByFieldNames(Collections.<String, Object>singletonMap("revision", 99L));
+                    cursor.next();
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+
+            copyFile(dbFile, snapshot);
+            copyFile(getJournalFile(), snapshotJournal);
+            db.rollback();
+        }
+        finally
+        {
+            db.close();
+        }
+
+        assertTrue(snapshotJournal.length() > 0);
+        copyFile(snapshot, dbFile);
+        copyFile(snapshotJournal, getJournalFile());
+
+        // The journal is dealt with as svn would, leaving the last committed
+        // state.
+        WorkingCopy workingCopy = WorkingCopy.read(wc);
+        assertEquals(2, workingCopy.getRevision());
+        assertTrue(workingCopy.isUnmodified());
+    }
+
+    private File getDbFile()
+    {
+        return new File(new File(wc, ".svn"), "wc.db");
+    }
+
+    private File getJournalFile()
+    {
+        return new File(new File(wc, ".svn"), "wc.db-journal");
+    }
+
+    private static void writeFile(File file, String content) throws IOException
+    {
+        OutputStream output = new FileOutputStream(file);
+        try
+        {
+            output.write(content.getBytes());
+        }
+        finally
+        {
+            output.close();
+        }
+    }
+
+    private static void copyFile(File from, File to) throws IOException
+    {
+        InputStream input = new FileInputStream(from);
+        try
+        {
+            OutputStream output = new FileOutputStream(to);
+            try
+            {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = input.read(buffer)) > 0)
+                {
+                    output.write(buffer, 0, n);
+                }
+            }
+            finally
+            {
+                output.close();
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    private static void removeDirectory(File dir)
+    {
+        File[] children = dir.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                removeDirectory(child);
+            }
+        }
+        dir.delete();
+    }
+}